@@ -0,0 +1,124 @@
+package io.grpc.examples;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.examples.proto.BatchGetRequest;
+import io.grpc.examples.proto.BatchGetResponse;
+import io.grpc.examples.proto.CreateRequest;
+import io.grpc.examples.proto.KeyValueServiceGrpc;
+import io.grpc.examples.proto.KeyValueServiceGrpc.KeyValueServiceBlockingStub;
+import io.grpc.examples.proto.RetrieveRequest;
+import io.grpc.examples.proto.RetrieveResponse;
+import io.grpc.examples.proto.UpdateRequest;
+import io.grpc.examples.proto.UpdateResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures {@link KvService} RPCs over the in-process transport, so that the cost of the service
+ * and the gRPC call path is seen without the network.  The simulated work is turned off, and
+ * everything runs on the calling thread where possible.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KvServiceBenchmark {
+  private static final int KEY_COUNT = 1024;
+  private static final int KEY_SIZE = 64;
+  private static final int BATCH_SIZE = 16;
+
+  @Param({"64", "65536"})
+  public int valueSize;
+
+  private ScheduledExecutorService scheduler;
+  private Server server;
+  private ManagedChannel channel;
+  private KeyValueServiceBlockingStub stub;
+  private ByteString[] keys;
+  private ByteString value;
+
+  @Setup
+  public void setUp() throws IOException {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    String name = "kvservice-benchmark";
+    ServerMetrics metrics = new ServerMetrics();
+    KvService service =
+        new KvService(new StripedKvStore(), metrics, scheduler, Runnable::run, 0, 0);
+    server = InProcessServerBuilder.forName(name)
+        .directExecutor()
+        .addService(ServerInterceptors.intercept(service, metrics))
+        .build()
+        .start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    stub = KeyValueServiceGrpc.newBlockingStub(channel);
+
+    Random random = new Random(1);
+    byte[] valueBytes = new byte[valueSize];
+    random.nextBytes(valueBytes);
+    value = ByteString.copyFrom(valueBytes);
+    keys = new ByteString[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      byte[] key = new byte[KEY_SIZE];
+      random.nextBytes(key);
+      keys[i] = ByteString.copyFrom(key);
+      stub.create(CreateRequest.newBuilder().setKey(keys[i]).setValue(value).build());
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    channel.shutdownNow();
+    server.shutdownNow().awaitTermination(1, TimeUnit.SECONDS);
+    scheduler.shutdownNow();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public RetrieveResponse retrieve() {
+    return stub.retrieve(RetrieveRequest.newBuilder().setKey(randomKey()).build());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public RetrieveResponse retrieveContended() {
+    return stub.retrieve(RetrieveRequest.newBuilder().setKey(randomKey()).build());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public UpdateResponse update() {
+    return stub.update(UpdateRequest.newBuilder().setKey(randomKey()).setValue(value).build());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public BatchGetResponse batchGet() {
+    BatchGetRequest.Builder req = BatchGetRequest.newBuilder();
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      req.addKeys(randomKey());
+    }
+    return stub.batchGet(req.build());
+  }
+
+  private ByteString randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+  }
+}
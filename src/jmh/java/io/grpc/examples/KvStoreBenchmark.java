@@ -0,0 +1,125 @@
+package io.grpc.examples;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the raw {@link KvStore} operations, without gRPC in the way.  Each operation has a
+ * single threaded version, and a "contended" version which runs on every available processor at
+ * once, to show how well the store scales.  The {@code cache} store puts a {@link CacheKvStore}
+ * with a size limit that is never reached over the striped store, to show what the cache layer
+ * costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KvStoreBenchmark {
+  private static final int KEY_COUNT = 4096;
+  private static final int KEY_SIZE = 64;
+
+  @Param({"striped", "offheap", "cache"})
+  public String storeType;
+
+  @Param({"64", "4096", "65536"})
+  public int valueSize;
+
+  private VersionedKvStore store;
+  private ByteBuffer[] keys;
+  private ByteBuffer value;
+
+  @Setup
+  public void setUp() {
+    store = new StripedKvStore();
+    if (storeType.equals("offheap")) {
+      store = new OffHeapKvStore(store, Long.MAX_VALUE);
+    } else if (storeType.equals("cache")) {
+      store = new CacheKvStore(store, Long.MAX_VALUE);
+    } else if (!storeType.equals("striped")) {
+      throw new IllegalArgumentException("Unknown store type: " + storeType);
+    }
+    Random random = new Random(1);
+    byte[] valueBytes = new byte[valueSize];
+    random.nextBytes(valueBytes);
+    value = ByteBuffer.wrap(valueBytes).asReadOnlyBuffer();
+    keys = new ByteBuffer[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      byte[] key = new byte[KEY_SIZE];
+      random.nextBytes(key);
+      keys[i] = ByteBuffer.wrap(key).asReadOnlyBuffer();
+      store.create(keys[i], value);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public ByteBuffer retrieve() {
+    return store.retrieve(randomKey());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public ByteBuffer retrieveContended() {
+    return store.retrieve(randomKey());
+  }
+
+  /**
+   * Reads a value along with its version, as the service does.
+   */
+  @Benchmark
+  @Threads(1)
+  public VersionedKvStore.VersionedValue retrieveVersioned() {
+    return store.retrieveVersioned(randomKey());
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public VersionedKvStore.VersionedValue retrieveVersionedContended() {
+    return store.retrieveVersioned(randomKey());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public ByteBuffer update() {
+    return store.update(randomKey(), value);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public ByteBuffer updateContended() {
+    return store.update(randomKey(), value);
+  }
+
+  /**
+   * Deletes and recreates a key, so the store stays the same size.
+   */
+  @Benchmark
+  @Threads(1)
+  public boolean deleteCreate() {
+    ByteBuffer key = randomKey();
+    store.delete(key);
+    return store.create(key, value);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public boolean deleteCreateContended() {
+    ByteBuffer key = randomKey();
+    store.delete(key);
+    return store.create(key, value);
+  }
+
+  private ByteBuffer randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+  }
+}
@@ -0,0 +1,79 @@
+package io.grpc.examples;
+
+import com.google.protobuf.ByteString;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the {@link RandomAccessSet} used by {@link KvClient} to track its keys.  The set is
+ * not thread safe, so each benchmark thread has its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RandomAccessSetBenchmark {
+  private static final int KEY_SIZE = 64;
+
+  @Param({"1000", "1000000"})
+  public int size;
+
+  private RandomAccessSet<ByteString> set;
+  private ByteString[] keys;
+  private ByteString[] extraKeys;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    set = new RandomAccessSet<>();
+    keys = randomKeys(random, size);
+    for (ByteString key : keys) {
+      set.add(key);
+    }
+    extraKeys = randomKeys(random, 1024);
+  }
+
+  @Benchmark
+  public ByteString getRandomKey() {
+    return set.getRandomKey();
+  }
+
+  /**
+   * Adds a key that isn't in the set and removes it again, so the set stays the same size.
+   */
+  @Benchmark
+  public boolean addRemove() {
+    ByteString key = extraKeys[next++ & (extraKeys.length - 1)];
+    set.add(key);
+    return set.remove(key);
+  }
+
+  /**
+   * Removes a key from the middle of the set and adds it back, which moves the last element into
+   * its place.
+   */
+  @Benchmark
+  public boolean removeAdd() {
+    ByteString key = keys[next++ % keys.length];
+    set.remove(key);
+    return set.add(key);
+  }
+
+  private static ByteString[] randomKeys(Random random, int count) {
+    ByteString[] keys = new ByteString[count];
+    for (int i = 0; i < count; i++) {
+      byte[] key = new byte[KEY_SIZE];
+      random.nextBytes(key);
+      keys[i] = ByteString.copyFrom(key);
+    }
+    return keys;
+  }
+}
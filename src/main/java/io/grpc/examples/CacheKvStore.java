@@ -0,0 +1,409 @@
+package io.grpc.examples;
+
+import io.grpc.Status;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * A {@link VersionedKvStore} which can run as a cache: the memory it uses is capped, and entries
+ * may be given a time to live.  It is only worth its cost when one of those is needed, since it
+ * keeps a node per entry on top of the delegate's, in a {@link ConcurrentHashMap} that hashes keys
+ * with {@link ByteBuffer#hashCode}, and takes a lock of its own for every write.  Locks are picked
+ * with {@link KeyTable#hash}.
+ *
+ * <p>The size of each entry is its key and value bytes, plus a rough estimate of the objects
+ * needed to hold it.  Once the total passes the cap, entries are evicted using sampled LRU: a few
+ * entries are picked at random, and the least recently used of them is removed.  This is nearly as
+ * good as true LRU, without a shared list to reorder on every read.
+ *
+ * <p>An entry whose time to live has passed is removed when it is next accessed, or by
+ * {@link #expireEntries}, which should be called periodically.  Expiry times are not logged, so
+ * entries recovered from a {@link WriteAheadLog} never expire.
+ *
+ * <p>Versions are given by the delegate, and an entry that has expired but not yet been removed is
+ * treated as absent.
+ *
+ * <p>Changes to keys sharing a lock are made one at a time.  Evictions and expiries go through the
+ * delegate too, so they are logged like deletes.  No lock is held while waiting for the delegate's
+ * log: changes are only queued for it under the lock, and {@link #awaitDurable} waits for them
+ * afterwards, along with any evictions they caused.  Waits for the segment locks are measured with
+ * {@link LockWaits}.
+ */
+final class CacheKvStore implements VersionedKvStore {
+
+  /**
+   * A rough estimate of the bytes used by the objects holding an entry, besides the key and value
+   * bytes themselves.
+   */
+  private static final int ENTRY_OVERHEAD_BYTES = 192;
+
+  /**
+   * The number of entries considered for each eviction.
+   */
+  private static final int EVICTION_SAMPLES = 8;
+
+  private final VersionedKvStore delegate;
+  private final long maxBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final ConcurrentMap<ByteBuffer, Node> nodes = new ConcurrentHashMap<>();
+  private final Segment[] segments;
+  private final LockWaits lockWaits = new LockWaits();
+
+  /**
+   * Creates a cache of the entries in the delegate, which may already hold some.  If
+   * {@code maxBytes} is zero the size is not limited, but entries can still expire.
+   */
+  CacheKvStore(VersionedKvStore delegate, long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.delegate = delegate;
+    this.maxBytes = maxBytes;
+    int count = Integer.highestOneBit(16 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment();
+    }
+    long now = System.nanoTime();
+    delegate.forEach((key, value) -> {
+      Segment segment = segmentFor(key);
+      lock(segment);
+      try {
+        track(segment, null, key, value, 0, now);
+      } finally {
+        segment.lock.unlock();
+      }
+    });
+    evictIfNeeded();
+  }
+
+  /**
+   * Returns the estimated number of bytes used by the entries.
+   */
+  long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for a segment.
+   */
+  long getLockWaits() {
+    return lockWaits.getWaits();
+  }
+
+  /**
+   * Returns the total time threads spent waiting for segments.
+   */
+  long getLockWaitNanos() {
+    return lockWaits.getWaitNanos();
+  }
+
+  /**
+   * Returns the number of entries, including any that have expired but not yet been removed.
+   */
+  long getEntryCount() {
+    return nodes.size();
+  }
+
+  @Override
+  public ByteBuffer retrieve(ByteBuffer key) {
+    Node node = nodes.get(key);
+    if (node != null && !touch(node)) {
+      return null;
+    }
+    return delegate.retrieve(key);
+  }
+
+  @Override
+  public VersionedValue retrieveVersioned(ByteBuffer key) {
+    Node node = nodes.get(key);
+    if (node != null && !touch(node)) {
+      return null;
+    }
+    return delegate.retrieveVersioned(key);
+  }
+
+  @Override
+  public WriteResult write(ByteBuffer key, ByteBuffer value, long expected, long ttlMillis) {
+    checkSize(key, value);
+    long now = System.nanoTime();
+    Segment segment = segmentFor(key);
+    WriteResult result;
+    lock(segment);
+    try {
+      // An expired entry is removed first, so that the delegate treats the key as absent too.
+      Node old = liveNode(segment, key, now);
+      // The delegate can't expire entries, so it is given none.
+      result = delegate.write(key, value, expected, 0);
+      if (result == null) {
+        return null;
+      }
+      track(segment, old, old != null ? old.key : key, value, ttlMillis, now);
+    } finally {
+      segment.lock.unlock();
+    }
+    evictIfNeeded();
+    return result;
+  }
+
+  @Override
+  public ByteBuffer delete(ByteBuffer key) {
+    Segment segment = segmentFor(key);
+    lock(segment);
+    try {
+      Node old = nodes.get(key);
+      ByteBuffer oldValue = delegate.delete(key);
+      if (old == null) {
+        return oldValue;
+      }
+      untrack(segment, old);
+      return old.isExpired(System.nanoTime()) ? null : oldValue;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteBuffer, ByteBuffer> action) {
+    delegate.forEach((key, value) -> {
+      Node node = nodes.get(key);
+      if (node == null || !node.isExpired(System.nanoTime())) {
+        action.accept(key, value);
+      }
+    });
+  }
+
+  @Override
+  public void scan(ByteBuffer fromKey, boolean inclusive, ByteBuffer toKey,
+      BiPredicate<ByteBuffer, ByteBuffer> action) {
+    // Scans don't count as uses of the entries, so that they don't push out the ones really in use.
+    delegate.scan(fromKey, inclusive, toKey, (key, value) -> {
+      Node node = nodes.get(key);
+      return (node != null && node.isExpired(System.nanoTime())) || action.test(key, value);
+    });
+  }
+
+  @Override
+  public void awaitDurable() {
+    delegate.awaitDurable();
+  }
+
+  /**
+   * Removes every entry whose time to live has passed.  The removals are only queued for the
+   * delegate's log while each segment is locked, and are waited for together at the end.
+   */
+  void expireEntries() {
+    for (Segment segment : segments) {
+      long now = System.nanoTime();
+      lock(segment);
+      try {
+        // Removing a node moves the last one into its place, so go backwards to see every one.
+        for (int i = segment.size - 1; i >= 0; i--) {
+          if (segment.nodes[i].isExpired(now)) {
+            remove(segment, segment.nodes[i]);
+          }
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    delegate.awaitDurable();
+  }
+
+  private void checkSize(ByteBuffer key, ByteBuffer value) {
+    long size = sizeOf(key, value);
+    if (maxBytes > 0 && size > maxBytes) {
+      throw Status.RESOURCE_EXHAUSTED
+          .withDescription("Entry of " + size + " bytes is larger than the cache")
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * Returns the node of the key, or {@code null} if it is not present.  An expired entry is
+   * removed first.
+   */
+  private Node liveNode(Segment segment, ByteBuffer key, long now) {
+    assert segment.lock.isHeldByCurrentThread();
+    Node node = nodes.get(key);
+    if (node != null && node.isExpired(now)) {
+      remove(segment, node);
+      return null;
+    }
+    return node;
+  }
+
+  /**
+   * Records a read of the entry and returns {@code true}, unless it has expired, in which case it
+   * is removed.
+   */
+  private boolean touch(Node node) {
+    long now = System.nanoTime();
+    if (node.isExpired(now)) {
+      Segment segment = segmentFor(node.key);
+      lock(segment);
+      try {
+        if (nodes.get(node.key) == node) {
+          remove(segment, node);
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+      return false;
+    }
+    node.accessNanos = now;
+    return true;
+  }
+
+  /**
+   * Records a new or changed entry, replacing {@code old} if it is not {@code null}.
+   */
+  private void track(
+      Segment segment, Node old, ByteBuffer key, ByteBuffer value, long ttlMillis, long now) {
+    assert segment.lock.isHeldByCurrentThread();
+    Node node = new Node(key, sizeOf(key, value), ttlMillis, now);
+    if (old != null) {
+      node.index = old.index;
+      usedBytes.addAndGet(node.size - old.size);
+    } else {
+      if (segment.size == segment.nodes.length) {
+        segment.nodes = Arrays.copyOf(segment.nodes, segment.size * 2);
+      }
+      node.index = segment.size++;
+      usedBytes.addAndGet(node.size);
+    }
+    segment.nodes[node.index] = node;
+    nodes.put(key, node);
+  }
+
+  private void untrack(Segment segment, Node node) {
+    assert segment.lock.isHeldByCurrentThread();
+    nodes.remove(node.key);
+    Node last = segment.nodes[--segment.size];
+    segment.nodes[node.index] = last;
+    last.index = node.index;
+    segment.nodes[segment.size] = null;
+    usedBytes.addAndGet(-node.size);
+  }
+
+  /**
+   * Removes the entry from the delegate, as well as from the cache.
+   */
+  private void remove(Segment segment, Node node) {
+    delegate.delete(node.key);
+    untrack(segment, node);
+  }
+
+  /**
+   * Evicts entries until the cache is within its size limit.  This must not be called while
+   * holding any segment lock.  The removals are left for the caller to wait for with
+   * {@link #awaitDurable}, along with the write that caused them.
+   */
+  private void evictIfNeeded() {
+    while (maxBytes > 0 && usedBytes.get() > maxBytes) {
+      Node victim = sampleVictim();
+      if (victim == null) {
+        return;
+      }
+      Segment segment = segmentFor(victim.key);
+      lock(segment);
+      try {
+        if (nodes.get(victim.key) == victim) {
+          remove(segment, victim);
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Returns the least recently used of a few randomly chosen entries, or an expired one if any is
+   * seen.  Returns {@code null} only if the cache is empty.
+   */
+  private Node sampleVictim() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long now = System.nanoTime();
+    Node victim = null;
+    for (int i = 0; i < EVICTION_SAMPLES; i++) {
+      Node node = null;
+      // Go on to the next segments if the chosen one is empty, so that a sparse cache still finds
+      // entries to evict.  Only an empty cache makes this look at every segment.
+      int start = random.nextInt(segments.length);
+      for (int j = 0; j < segments.length && node == null; j++) {
+        Segment segment = segments[(start + j) & (segments.length - 1)];
+        lock(segment);
+        try {
+          if (segment.size > 0) {
+            node = segment.nodes[random.nextInt(segment.size)];
+          }
+        } finally {
+          segment.lock.unlock();
+        }
+      }
+      if (node == null) {
+        return null;
+      }
+      if (node.isExpired(now)) {
+        return node;
+      }
+      if (victim == null || node.accessNanos - victim.accessNanos < 0) {
+        victim = node;
+      }
+    }
+    return victim;
+  }
+
+  private static long sizeOf(ByteBuffer key, ByteBuffer value) {
+    return (long) key.remaining() + value.remaining() + ENTRY_OVERHEAD_BYTES;
+  }
+
+  private void lock(Segment segment) {
+    lockWaits.lock(segment.lock);
+  }
+
+  private Segment segmentFor(ByteBuffer key) {
+    return segments[KeyTable.hash(key) & (segments.length - 1)];
+  }
+
+  /**
+   * The entries whose keys hash to the segment, kept in an array so that they can be sampled.
+   */
+  private static final class Segment {
+    final ReentrantLock lock = new ReentrantLock();
+    // Both guarded by lock.
+    Node[] nodes = new Node[16];
+    int size;
+  }
+
+  private static final class Node {
+    final ByteBuffer key;
+    final long size;
+    final long ttlNanos;
+    final long expiryNanos;
+    volatile long accessNanos;
+    // Guarded by the segment lock.
+    int index;
+
+    Node(ByteBuffer key, long size, long ttlMillis, long now) {
+      this.key = key;
+      this.size = size;
+      // Keep the expiry time comparable with nanoTime, which only works for differences below 2^63.
+      this.ttlNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(ttlMillis), Long.MAX_VALUE >> 1);
+      this.expiryNanos = now + ttlNanos;
+      this.accessNanos = now;
+    }
+
+    boolean isExpired(long now) {
+      return ttlNanos != 0 && now - expiryNanos >= 0;
+    }
+  }
+}
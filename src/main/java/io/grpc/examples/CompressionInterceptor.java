@@ -0,0 +1,43 @@
+package io.grpc.examples;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.CompressorRegistry;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * Turns on gRPC message compression with a registered compressor, such as {@code gzip}, for the
+ * calls of a client or a server.  Clients compress their requests, and say which compressions they
+ * can undo.  The server only compresses its responses to clients that can undo it, and sends the
+ * rest uncompressed.
+ */
+final class CompressionInterceptor implements ClientInterceptor, ServerInterceptor {
+  private final String compressorName;
+
+  CompressionInterceptor(String compressorName) {
+    if (CompressorRegistry.getDefaultInstance().lookupCompressor(compressorName) == null) {
+      throw new IllegalArgumentException("Unknown compressor: " + compressorName);
+    }
+    this.compressorName = compressorName;
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+      MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+    return next.newCall(method, callOptions.withCompression(compressorName));
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    // The call falls back to no compression if the client can't undo it.
+    call.setCompression(compressorName);
+    return next.startCall(call, headers);
+  }
+}
@@ -0,0 +1,115 @@
+package io.grpc.examples;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * The settings that decide how the data under a log directory is laid out, which can't change
+ * once it holds any.  They are recorded in a {@code kvstore.properties} file in the directory, and
+ * a server started with different ones refuses to run, rather than ignore or misread the data.
+ *
+ * <p>The number of shards decides where each shard logs: with one, straight into the directory,
+ * and with more, into a {@code shard-N} subdirectory for each.  Directories written before the
+ * settings were recorded have them worked out from the files present.  Whether values are
+ * compressed decides how the stored values are read back, and is taken to be off for data written
+ * before it was recorded.
+ */
+final class DataLayout {
+  private static final String FILE_NAME = "kvstore.properties";
+  private static final String SHARDS = "shards";
+  private static final String VALUE_COMPRESSION = "valueCompression";
+
+  private DataLayout() {}
+
+  /**
+   * Returns the directory the given shard logs to.
+   */
+  static Path shardDir(Path dir, int shard, int shards) {
+    return shards > 1 ? dir.resolve("shard-" + shard) : dir;
+  }
+
+  /**
+   * Checks that the directory was written with the same settings, creating it if needed, and
+   * records them if they weren't already.
+   *
+   * @throws IllegalStateException if the directory holds data written with other settings
+   */
+  static void check(Path dir, int shards, boolean valueCompression) throws IOException {
+    Files.createDirectories(dir);
+    Properties settings = new Properties();
+    settings.setProperty(SHARDS, Integer.toString(shards));
+    settings.setProperty(VALUE_COMPRESSION, Boolean.toString(valueCompression));
+    Path file = dir.resolve(FILE_NAME);
+    boolean exists = Files.exists(file);
+    Properties recorded;
+    if (exists) {
+      recorded = new Properties();
+      try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        recorded.load(in);
+      }
+      recorded.putIfAbsent(VALUE_COMPRESSION, "false");
+    } else {
+      recorded = inferSettings(dir);
+    }
+    for (String name : settings.stringPropertyNames()) {
+      String value = recorded.getProperty(name);
+      if (value != null && !value.equals(settings.getProperty(name))) {
+        throw new IllegalStateException(dir + " was written with " + name + "=" + value
+            + ", not " + settings.getProperty(name));
+      }
+    }
+    if (!exists || !recorded.equals(settings)) {
+      write(file, settings);
+    }
+  }
+
+  /**
+   * Returns the settings a directory without a settings file must have been written with, which
+   * are none if it holds no data.
+   */
+  private static Properties inferSettings(Path dir) throws IOException {
+    Properties settings = new Properties();
+    int shardDirs = 0;
+    boolean unsharded = false;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.startsWith("shard-")) {
+          shardDirs++;
+        } else if (name.startsWith("wal-") || name.startsWith("snapshot-")) {
+          unsharded = true;
+        }
+      }
+    }
+    if (unsharded) {
+      settings.setProperty(SHARDS, "1");
+    } else if (shardDirs > 0) {
+      settings.setProperty(SHARDS, Integer.toString(shardDirs));
+    }
+    if (unsharded || shardDirs > 0) {
+      settings.setProperty(VALUE_COMPRESSION, "false");
+    }
+    return settings;
+  }
+
+  private static void write(Path file, Properties settings) throws IOException {
+    Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+    try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      settings.store(out, "Settings this directory was written with.  Don't edit.");
+    }
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    WriteAheadLog.syncDirectory(file.getParent());
+  }
+}
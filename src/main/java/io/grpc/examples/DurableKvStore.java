@@ -0,0 +1,133 @@
+package io.grpc.examples;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link VersionedKvStore} which records every change in a {@link WriteAheadLog}.  Changes to
+ * the same key are applied and logged under a common lock, so the log has them in the same order
+ * as the store.  Writes return once their change is queued for the log, and {@link #awaitDurable}
+ * waits for the changes of the calling thread to reach the disk.  Since nothing waits for the disk
+ * while holding a lock, writers of other keys (and later writers of the same key) are not held up
+ * by it, and neither are writers waiting on locks of the caller.  Waits for the locks are measured
+ * with {@link LockWaits}.
+ */
+final class DurableKvStore implements VersionedKvStore {
+
+  private final VersionedKvStore delegate;
+  private final WriteAheadLog log;
+  private final ReentrantLock[] locks;
+  private final LockWaits lockWaits = new LockWaits();
+  /**
+   * The log record of the last change each thread made and has not yet waited for.  Records are
+   * synced in order, so waiting for it covers the earlier ones too.
+   */
+  private final ThreadLocal<CompletableFuture<Void>> unsynced = new ThreadLocal<>();
+
+  DurableKvStore(VersionedKvStore delegate, WriteAheadLog log) {
+    this.delegate = delegate;
+    this.log = log;
+    int count = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1;
+    locks = new ReentrantLock[count];
+    for (int i = 0; i < count; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public ByteBuffer retrieve(ByteBuffer key) {
+    return delegate.retrieve(key);
+  }
+
+  @Override
+  public VersionedValue retrieveVersioned(ByteBuffer key) {
+    return delegate.retrieveVersioned(key);
+  }
+
+  @Override
+  public WriteResult write(ByteBuffer key, ByteBuffer value, long expected, long ttlMillis) {
+    CompletableFuture<Void> logged;
+    WriteResult result;
+    ReentrantLock lock = lockFor(key);
+    lockWaits.lock(lock);
+    try {
+      log.checkWritable();
+      result = delegate.write(key, value, expected, ttlMillis);
+      if (result == null) {
+        return null;
+      }
+      logged = log.appendPut(key, value);
+    } finally {
+      lock.unlock();
+    }
+    deferAwait(logged);
+    return result;
+  }
+
+  @Override
+  public ByteBuffer delete(ByteBuffer key) {
+    CompletableFuture<Void> logged;
+    ByteBuffer oldValue;
+    ReentrantLock lock = lockFor(key);
+    lockWaits.lock(lock);
+    try {
+      log.checkWritable();
+      oldValue = delegate.delete(key);
+      if (oldValue == null) {
+        return null;
+      }
+      logged = log.appendDelete(key);
+    } finally {
+      lock.unlock();
+    }
+    deferAwait(logged);
+    return oldValue;
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteBuffer, ByteBuffer> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteBuffer fromKey, boolean inclusive, ByteBuffer toKey,
+      BiPredicate<ByteBuffer, ByteBuffer> action) {
+    delegate.scan(fromKey, inclusive, toKey, action);
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for a lock.
+   */
+  long getLockWaits() {
+    return lockWaits.getWaits();
+  }
+
+  /**
+   * Returns the total time threads spent waiting for locks.
+   */
+  long getLockWaitNanos() {
+    return lockWaits.getWaitNanos();
+  }
+
+  @Override
+  public void awaitDurable() {
+    CompletableFuture<Void> logged = unsynced.get();
+    if (logged != null) {
+      unsynced.set(null);
+      WriteAheadLog.await(logged);
+    }
+  }
+
+  private void deferAwait(CompletableFuture<Void> logged) {
+    if (log.getDurability() == WriteAheadLog.Durability.SYNC) {
+      unsynced.set(logged);
+    }
+  }
+
+  private ReentrantLock lockFor(ByteBuffer key) {
+    return locks[KeyTable.hash(key) & (locks.length - 1)];
+  }
+}
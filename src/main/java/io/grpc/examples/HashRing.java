@@ -0,0 +1,87 @@
+package io.grpc.examples;
+
+import com.google.protobuf.ByteString;
+import java.util.Arrays;
+
+/**
+ * Assigns keys to shards by consistent hashing.  Each shard owns many points on a ring of 64 bit
+ * hashes, and a key belongs to the shard owning the first point at or after the key's hash.  With
+ * enough points per shard the keys are spread evenly, and adding a shard only moves the keys that
+ * the new shard takes over.
+ */
+final class HashRing {
+
+  /**
+   * The number of points each shard owns.  More points make the split of keys more even.
+   */
+  private static final int POINTS_PER_SHARD = 256;
+
+  private final int shards;
+  /** The points of the ring, sorted. */
+  private final long[] points;
+  /** The shard owning each point. */
+  private final int[] owners;
+
+  HashRing(int shards) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("shards must be positive: " + shards);
+    }
+    this.shards = shards;
+    int count = shards * POINTS_PER_SHARD;
+    long[] unsorted = new long[count];
+    for (int i = 0; i < count; i++) {
+      // The points of shard s are the hashes of (s, 0), (s, 1) and so on.
+      unsorted[i] = mix((long) (i / POINTS_PER_SHARD) << 32 | (i % POINTS_PER_SHARD));
+    }
+    points = unsorted.clone();
+    Arrays.sort(points);
+    owners = new int[count];
+    for (int i = 0; i < count; i++) {
+      owners[Arrays.binarySearch(points, unsorted[i])] = i / POINTS_PER_SHARD;
+    }
+  }
+
+  int getShardCount() {
+    return shards;
+  }
+
+  /**
+   * Returns the shard that owns the key, from 0 up to the shard count.
+   */
+  int shardFor(ByteString key) {
+    if (shards == 1) {
+      return 0;
+    }
+    int i = Arrays.binarySearch(points, hash(key));
+    if (i < 0) {
+      i = -i - 1;
+      if (i == points.length) {
+        // Wrap around the ring.
+        i = 0;
+      }
+    }
+    return owners[i];
+  }
+
+  /**
+   * Returns a well mixed 64 bit hash of the key, using FNV-1a followed by the MurmurHash3
+   * finalizer.  {@link ByteString#hashCode} is only 32 bits, and is not well mixed.
+   */
+  static long hash(ByteString key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.size(); i++) {
+      h ^= key.byteAt(i) & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
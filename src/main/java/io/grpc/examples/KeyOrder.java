@@ -0,0 +1,45 @@
+package io.grpc.examples;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * The order of keys in a scan: lexicographic by unsigned byte, with a key sorting before any
+ * longer key it is a prefix of.  {@link ByteBuffer#compareTo} can't be used, since it compares
+ * bytes as signed.
+ */
+final class KeyOrder {
+  static final Comparator<ByteBuffer> COMPARATOR = KeyOrder::compare;
+
+  private KeyOrder() {}
+
+  static int compare(ByteBuffer a, ByteBuffer b) {
+    int length = Math.min(a.remaining(), b.remaining());
+    for (int i = 0; i < length; i++) {
+      int cmp = Integer.compare(
+          a.get(a.position() + i) & 0xff, b.get(b.position() + i) & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(a.remaining(), b.remaining());
+  }
+
+  /**
+   * Returns the first key after every key starting with the prefix, or {@code null} if there is no
+   * such key because the prefix is empty or all {@code 0xff} bytes.
+   */
+  static ByteBuffer prefixEnd(ByteBuffer prefix) {
+    for (int i = prefix.remaining() - 1; i >= 0; i--) {
+      int b = prefix.get(prefix.position() + i) & 0xff;
+      if (b != 0xff) {
+        ByteBuffer end = ByteBuffer.allocate(i + 1);
+        ByteBuffer head = prefix.duplicate();
+        head.limit(head.position() + i);
+        end.put(head).put((byte) (b + 1)).flip();
+        return end;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,211 @@
+package io.grpc.examples;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.BiConsumer;
+
+/**
+ * A hash table from byte string keys to versioned values, specialized for {@link StripedKvStore}.
+ * It uses open addressing with linear probing over parallel arrays, holding the hash, key, value
+ * and version of each slot.  Compared with a {@link java.util.HashMap}, there is no entry object
+ * per mapping, probing reads neighbouring slots rather than chasing pointers, and the hash of each
+ * key is kept so that it is never recomputed, and other keys are only compared byte by byte when
+ * their hashes match.
+ *
+ * <p>The caller computes the hash of the key with {@link #hash} and passes it to each method, so
+ * that it can also be used to pick a stripe.  Writes {@link #find} the slot of the key first, so
+ * that its version can be checked before it is changed without looking it up twice.  Removal
+ * shifts later slots of the probe sequence back, so no tombstones are left behind.
+ *
+ * <p>Not thread safe.
+ */
+final class KeyTable {
+  private static final int MIN_CAPACITY = 16;
+
+  private int[] hashes;
+  private ByteBuffer[] keys;
+  private ByteBuffer[] values;
+  private long[] versions;
+  private int size;
+
+  KeyTable() {
+    allocate(MIN_CAPACITY);
+  }
+
+  int size() {
+    return size;
+  }
+
+  ByteBuffer get(ByteBuffer key, int hash) {
+    int slot = find(key, hash);
+    return slot < 0 ? null : values[slot];
+  }
+
+  /**
+   * Returns the slot holding the key, or if it is not present, the complement of the empty slot
+   * where it would go.  The slot is valid until the table is next changed.
+   */
+  int find(ByteBuffer key, int hash) {
+    int mask = keys.length - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      ByteBuffer k = keys[i];
+      if (k == null) {
+        return ~i;
+      }
+      if (hashes[i] == hash && equal(k, key)) {
+        return i;
+      }
+    }
+  }
+
+  ByteBuffer valueAt(int slot) {
+    return values[slot];
+  }
+
+  long versionAt(int slot) {
+    return versions[slot];
+  }
+
+  /**
+   * Replaces the value and version in a slot holding a key.  The existing key buffer is kept.
+   */
+  void set(int slot, ByteBuffer value, long version) {
+    values[slot] = value;
+    versions[slot] = version;
+  }
+
+  /**
+   * Adds a key that is not present, given the complement returned by {@link #find}.
+   */
+  void insert(int notFound, ByteBuffer key, int hash, ByteBuffer value, long version) {
+    int slot = ~notFound;
+    hashes[slot] = hash;
+    keys[slot] = key;
+    values[slot] = value;
+    versions[slot] = version;
+    // Keep the table at most three quarters full, so that probe sequences stay short.
+    if (++size > keys.length - (keys.length >>> 2)) {
+      resize(keys.length * 2);
+    }
+  }
+
+  /**
+   * Removes the key, and returns its value or {@code null} if it was not present.
+   */
+  ByteBuffer remove(ByteBuffer key, int hash) {
+    int slot = find(key, hash);
+    if (slot < 0) {
+      return null;
+    }
+    ByteBuffer oldValue = values[slot];
+    int mask = keys.length - 1;
+    // Move back any later entry of the run whose ideal slot isn't between the gap and itself, so
+    // that lookups never stop early at the gap.
+    int gap = slot;
+    for (int i = (gap + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+      int ideal = hashes[i] & mask;
+      if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+        hashes[gap] = hashes[i];
+        keys[gap] = keys[i];
+        values[gap] = values[i];
+        versions[gap] = versions[i];
+        gap = i;
+      }
+    }
+    keys[gap] = null;
+    values[gap] = null;
+    size--;
+    return oldValue;
+  }
+
+  /**
+   * Calls the action with each key and value.  The table must not be changed until it returns.
+   */
+  void forEach(BiConsumer<ByteBuffer, ByteBuffer> action) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null) {
+        action.accept(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns a well mixed hash of the remaining bytes of the key.  Eight bytes are read at a time,
+   * which is much faster than {@link ByteBuffer#hashCode} for keys of more than a few bytes.
+   */
+  static int hash(ByteBuffer key) {
+    int pos = key.position();
+    int end = key.limit();
+    boolean swap = key.order() != ByteOrder.BIG_ENDIAN;
+    long h = end - pos;
+    for (; end - pos >= Long.BYTES; pos += Long.BYTES) {
+      long word = key.getLong(pos);
+      h = (h ^ (swap ? Long.reverseBytes(word) : word)) * 0x9e3779b97f4a7c15L;
+      h ^= h >>> 32;
+    }
+    for (; pos < end; pos++) {
+      h = (h ^ (key.get(pos) & 0xff)) * 0x9e3779b97f4a7c15L;
+    }
+    // The MurmurHash3 finalizer, so that every bit of the result depends on every input bit.
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h;
+  }
+
+  private void resize(int capacity) {
+    int[] oldHashes = hashes;
+    ByteBuffer[] oldKeys = keys;
+    ByteBuffer[] oldValues = values;
+    long[] oldVersions = versions;
+    allocate(capacity);
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] == null) {
+        continue;
+      }
+      // The cached hashes mean no key needs to be read to move it.
+      int i = oldHashes[j] & mask;
+      while (keys[i] != null) {
+        i = (i + 1) & mask;
+      }
+      hashes[i] = oldHashes[j];
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+      versions[i] = oldVersions[j];
+    }
+  }
+
+  private void allocate(int capacity) {
+    hashes = new int[capacity];
+    keys = new ByteBuffer[capacity];
+    values = new ByteBuffer[capacity];
+    versions = new long[capacity];
+  }
+
+  private static boolean equal(ByteBuffer a, ByteBuffer b) {
+    int length = a.remaining();
+    if (length != b.remaining()) {
+      return false;
+    }
+    int pa = a.position();
+    int pb = b.position();
+    if (a.order() == b.order()) {
+      for (; length >= Long.BYTES; length -= Long.BYTES) {
+        if (a.getLong(pa) != b.getLong(pb)) {
+          return false;
+        }
+        pa += Long.BYTES;
+        pb += Long.BYTES;
+      }
+    }
+    for (; length > 0; length--) {
+      if (a.get(pa++) != b.get(pb++)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,45 +1,129 @@
 package io.grpc.examples;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Channel;
+import io.grpc.Status;
 import io.grpc.Status.Code;
 import io.grpc.StatusRuntimeException;
+import io.grpc.examples.proto.BatchGetRequest;
+import io.grpc.examples.proto.BatchGetResponse;
+import io.grpc.examples.proto.BatchOperation;
+import io.grpc.examples.proto.BatchPutRequest;
+import io.grpc.examples.proto.BatchPutResponse;
+import io.grpc.examples.proto.BatchRequest;
+import io.grpc.examples.proto.BatchResponse;
+import io.grpc.examples.proto.BatchResult;
 import io.grpc.examples.proto.CreateRequest;
 import io.grpc.examples.proto.CreateResponse;
 import io.grpc.examples.proto.DeleteRequest;
 import io.grpc.examples.proto.DeleteResponse;
+import io.grpc.examples.proto.Entry;
 import io.grpc.examples.proto.KeyValueServiceGrpc;
 import io.grpc.examples.proto.KeyValueServiceGrpc.KeyValueServiceBlockingStub;
+import io.grpc.examples.proto.KeyValueServiceGrpc.KeyValueServiceFutureStub;
+import io.grpc.examples.proto.PipelineRequest;
+import io.grpc.examples.proto.PipelineResponse;
 import io.grpc.examples.proto.RetrieveRequest;
 import io.grpc.examples.proto.RetrieveResponse;
 import io.grpc.examples.proto.UpdateRequest;
 import io.grpc.examples.proto.UpdateResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Performs sample work load, by creating random keys and values, retrieving them, updating them,
  * and deleting them.  A real program would actually use the values, and they wouldn't be random.
+ *
+ * <p>If the batch size is greater than one, the batch RPCs are used instead: creates become a
+ * {@code BatchPut} of new keys, retrieves become a {@code BatchGet}, and updates and deletes
+ * become a mixed {@code Batch}.
+ *
+ * <p>If the pipeline depth is positive, all operations are instead sent on a single
+ * {@code Pipeline} stream per shard, keeping up to that many outstanding at once.
+ *
+ * <p>The keys may be split across several shards, each with its own channel.  Every operation is
+ * sent to the shard owning its key, as chosen by a {@link HashRing}.  A batch is split into one
+ * batch per shard, which are sent in parallel.
+ *
+ * <p>Retrieved values are only checked, never used, so the client accepts them compressed.  This
+ * saves the server from decompressing values it stores compressed.
+ *
+ * <p>The mix of operations and the sizes of keys and values come from the {@link Workload}.  If it
+ * has a target rate, operations are started on a fixed schedule rather than as soon as the last
+ * one finishes, and each latency is measured from when the operation was due to start.  A slow
+ * response then counts against every operation it delayed, instead of hiding them ("coordinated
+ * omission").  Latencies are recorded in the shared {@link LoadStats}.
  */
 final class KvClient {
   private static final Logger logger = Logger.getLogger(KvClient.class.getName());
 
-  private final int MEAN_KEY_SIZE = 64;
-  private final int MEAN_VALUE_SIZE = 65536;
+  /**
+   * Values are slices of this, rather than freshly generated, so that making them doesn't limit how
+   * fast the client can send.  It is never modified, so the slices can share it.
+   */
+  private static final byte[] RANDOM_POOL = new byte[16 * 1024 * 1024];
 
-  private final RandomAccessSet<ByteString> knownKeys = new RandomAccessSet<>();
-  private final Channel channel;
+  static {
+    new Random().nextBytes(RANDOM_POOL);
+  }
 
-  private long rpcCount;
+  /**
+   * Like {@link #RANDOM_POOL}, but each byte is one of 16 values, which Deflate shrinks by about
+   * 40%.  It is only made if the workload asks for compressible values.
+   */
+  private static final class CompressiblePool {
+    static final byte[] BYTES = new byte[RANDOM_POOL.length];
 
-  KvClient(Channel channel) {
-    this.channel = channel;
+    static {
+      for (int i = 0; i < BYTES.length; i++) {
+        BYTES[i] = (byte) ('a' + (RANDOM_POOL[i] & 0xf));
+      }
+    }
   }
 
-  long getRpcCount() {
-    return rpcCount;
+  private final RandomAccessSet<ByteString> knownKeys = new RandomAccessSet<>();
+  private final Random random = new Random();
+  private final List<Channel> channels;
+  private final List<KeyValueServiceBlockingStub> blockingStubs = new ArrayList<>();
+  private final List<KeyValueServiceFutureStub> futureStubs = new ArrayList<>();
+  private final HashRing ring;
+  private final Workload workload;
+  private final LoadStats stats;
+
+  private long startNanos;
+  private long opsStarted;
+
+  /**
+   * Creates a client of the shards reached through the channels, with the channel of shard
+   * {@code i} at index {@code i}.
+   */
+  KvClient(List<Channel> channels, Workload workload, LoadStats stats) {
+    this.channels = channels;
+    for (Channel channel : channels) {
+      blockingStubs.add(KeyValueServiceGrpc.newBlockingStub(channel));
+      futureStubs.add(KeyValueServiceGrpc.newFutureStub(channel));
+    }
+    this.ring = new HashRing(channels.size());
+    this.workload = workload;
+    this.stats = stats;
   }
 
   /**
@@ -47,45 +131,255 @@ final class KvClient {
    * and wait for this method to return.
    */
   void doClientWork(AtomicBoolean done) {
-    Random random = new Random();
-    KeyValueServiceBlockingStub stub = KeyValueServiceGrpc.newBlockingStub(channel);
+    startNanos = System.nanoTime();
+    if (workload.pipelineDepth > 0) {
+      doPipelineWork(done);
+      return;
+    }
+    boolean batching = workload.batchSize > 1;
 
     while (!done.get()) {
       // Pick a random CRUD action to take.
-      int command = random.nextInt(4);
-      if (command == 0) {
-        doCreate(stub);
+      int command = workload.nextCommand(random);
+      // If we don't know about any keys, retry with a new random action.
+      if (command != 0 && knownKeys.isEmpty()) {
         continue;
       }
-      // If we don't know about any keys, retry with a new random action.
+      long start = nextStartNanos();
+      LoadStats.Op op;
+      if (command == 0) {
+        if (batching) {
+          doBatchPut();
+          op = LoadStats.Op.BATCH_PUT;
+        } else {
+          doCreate();
+          op = LoadStats.Op.CREATE;
+        }
+      } else if (batching) {
+        if (command == 1) {
+          doBatchGet();
+          op = LoadStats.Op.BATCH_GET;
+        } else {
+          doBatch();
+          op = LoadStats.Op.BATCH;
+        }
+      } else if (command == 1) {
+        doRetrieve();
+        op = LoadStats.Op.RETRIEVE;
+      } else if (command == 2) {
+        doUpdate();
+        op = LoadStats.Op.UPDATE;
+      } else if (command == 3) {
+        doDelete();
+        op = LoadStats.Op.DELETE;
+      } else {
+        throw new AssertionError();
+      }
+      stats.record(op, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Returns the time the next operation is considered to start.  Without a target rate, that is
+   * now.  With one, it is the next slot in the schedule, after waiting for it if it is still in the
+   * future.  If the client has fallen behind, the slot may be in the past.
+   */
+  private long nextStartNanos() {
+    if (workload.targetRate == 0) {
+      return System.nanoTime();
+    }
+    double intervalNanos = TimeUnit.SECONDS.toNanos(1) / workload.targetRate;
+    long due = startNanos + (long) (opsStarted++ * intervalNanos);
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+    return due;
+  }
+
+  /**
+   * Sends random operations on a pipeline stream to each shard until {@code done.get()} returns
+   * true, and then waits for the outstanding ones to complete.  The pipeline depth is shared by the
+   * streams.  Responses arrive on other threads, so {@link #knownKeys} is locked while in use.
+   */
+  private void doPipelineWork(AtomicBoolean done) {
+    int pipelineDepth = workload.pipelineDepth;
+    Semaphore permits = new Semaphore(pipelineDepth);
+    Map<Long, Pending> outstanding = new ConcurrentHashMap<>();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    CountDownLatch finished = new CountDownLatch(channels.size());
+
+    StreamObserver<PipelineResponse> responses = new StreamObserver<PipelineResponse>() {
+      @Override
+      public void onNext(PipelineResponse res) {
+        Pending pending = outstanding.remove(res.getTag());
+        try {
+          if (pending == null) {
+            throw new RuntimeException("Invalid response");
+          }
+          stats.record(pendingOp(pending.op), System.nanoTime() - pending.startNanos);
+          handlePipelineResult(pending.op, res.getResult());
+        } catch (RuntimeException e) {
+          failure.compareAndSet(null, e);
+        }
+        permits.release();
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        failure.compareAndSet(null, t);
+        // Wake up the sender, which may be waiting for responses that will never come.
+        permits.release(pipelineDepth);
+        finished.countDown();
+      }
+
+      @Override
+      public void onCompleted() {
+        finished.countDown();
+      }
+    };
+    List<StreamObserver<PipelineRequest>> requests = new ArrayList<>(channels.size());
+    for (Channel channel : channels) {
+      requests.add(KeyValueServiceGrpc.newStub(channel).pipeline(responses));
+    }
+
+    long tag = 0;
+    try {
+      while (!done.get() && failure.get() == null) {
+        if (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+          continue;
+        }
+        BatchOperation op = nextPipelineOperation();
+        if (op == null) {
+          permits.release();
+          continue;
+        }
+        outstanding.put(tag, new Pending(op, nextStartNanos()));
+        requests.get(ring.shardFor(keyOf(op)))
+            .onNext(PipelineRequest.newBuilder().setTag(tag).setOperation(op).build());
+        tag++;
+      }
+      for (StreamObserver<PipelineRequest> shardRequests : requests) {
+        shardRequests.onCompleted();
+      }
+      finished.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (StreamObserver<PipelineRequest> shardRequests : requests) {
+        shardRequests.onError(e);
+      }
+      throw new RuntimeException(e);
+    }
+    Throwable t = failure.get();
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t != null) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  /**
+   * Picks a random CRUD action to take, or returns {@code null} if there are no known keys to
+   * act on.
+   */
+  private BatchOperation nextPipelineOperation() {
+    BatchOperation.Builder op = BatchOperation.newBuilder();
+    synchronized (knownKeys) {
+      int command = workload.nextCommand(random);
+      if (command == 0) {
+        return op.setCreate(CreateRequest.newBuilder()
+            .setKey(createRandomKey())
+            .setValue(randomValue()))
+            .build();
+      }
       if (knownKeys.isEmpty()) {
-        continue;
+        return null;
       }
+      ByteString key = knownKeys.getRandomKey();
       if (command == 1) {
-        doRetrieve(stub);
+        op.getRetrieveBuilder().setKey(key).setAcceptCompressed(true);
       } else if (command == 2) {
-        doUpdate(stub);
+        op.getUpdateBuilder().setKey(key).setValue(randomValue());
       } else if (command == 3) {
-        doDelete(stub);
+        // Forget the key now, so that later operations don't pick it while it is being deleted.
+        knownKeys.remove(key);
+        op.getDeleteBuilder().setKey(key);
       } else {
         throw new AssertionError();
       }
-      rpcCount++;
     }
+    return op.build();
+  }
+
+  /**
+   * Checks the result of a pipelined operation, forgetting keys that turned out to be missing or
+   * already taken, in the same way as the unary operations.
+   */
+  private void handlePipelineResult(BatchOperation op, BatchResult result) {
+    int code = result.getCode();
+    switch (op.getOperationCase()) {
+      case CREATE:
+        if (code == Code.ALREADY_EXISTS.value()) {
+          forgetKey(op.getCreate().getKey(), "Key already existed");
+          return;
+        }
+        break;
+      case RETRIEVE:
+        if (code == Code.NOT_FOUND.value()) {
+          forgetKey(op.getRetrieve().getKey(), "Key not found");
+          return;
+        }
+        checkResult(result);
+        if (result.getValue().size() < 1) {
+          throw new RuntimeException("Invalid response");
+        }
+        return;
+      case UPDATE:
+        if (code == Code.NOT_FOUND.value()) {
+          forgetKey(op.getUpdate().getKey(), "Key not found");
+          return;
+        }
+        break;
+      default:
+        break;
+    }
+    checkResult(result);
+  }
+
+  private static LoadStats.Op pendingOp(BatchOperation op) {
+    switch (op.getOperationCase()) {
+      case CREATE:
+        return LoadStats.Op.CREATE;
+      case RETRIEVE:
+        return LoadStats.Op.RETRIEVE;
+      case UPDATE:
+        return LoadStats.Op.UPDATE;
+      case DELETE:
+        return LoadStats.Op.DELETE;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  private void forgetKey(ByteString key, String reason) {
+    synchronized (knownKeys) {
+      knownKeys.remove(key);
+    }
+    logger.log(Level.INFO, reason);
   }
 
   /**
    * Creates a random key and value.
    */
-  private void doCreate(KeyValueServiceBlockingStub stub) {
+  private void doCreate() {
     ByteString key = createRandomKey();
     try {
-      CreateResponse res = stub.create(
+      CreateResponse res = stubFor(key).create(
           CreateRequest.newBuilder()
               .setKey(key)
-              .setValue(randomBytes(MEAN_VALUE_SIZE))
+              .setValue(randomValue())
               .build());
-      if (!res.equals(CreateResponse.getDefaultInstance())) {
+      if (res.getVersion() == 0) {
         throw new RuntimeException("Invalid response");
       }
     } catch (StatusRuntimeException e) {
@@ -101,13 +395,14 @@ final class KvClient {
   /**
    * Retrieves the value of a random key.
    */
-  private void doRetrieve(KeyValueServiceBlockingStub stub) {
+  private void doRetrieve() {
     ByteString key = knownKeys.getRandomKey();
     try {
-      RetrieveResponse res = stub.retrieve(RetrieveRequest.newBuilder()
+      RetrieveResponse res = stubFor(key).retrieve(RetrieveRequest.newBuilder()
           .setKey(key)
+          .setAcceptCompressed(true)
           .build());
-      if (res.getValue().size() < 1) {
+      if (res.getValue().size() < 1 || res.getVersion() == 0) {
         throw new RuntimeException("Invalid response");
       }
     } catch (StatusRuntimeException e) {
@@ -123,14 +418,14 @@ final class KvClient {
   /**
    * Updates a random key with a random value.
    */
-  private void doUpdate(KeyValueServiceBlockingStub stub) {
+  private void doUpdate() {
     ByteString key = knownKeys.getRandomKey();
     try {
-      UpdateResponse res = stub.update(UpdateRequest.newBuilder()
+      UpdateResponse res = stubFor(key).update(UpdateRequest.newBuilder()
           .setKey(key)
-          .setValue(randomBytes(MEAN_VALUE_SIZE))
+          .setValue(randomValue())
           .build());
-      if (!res.equals(UpdateResponse.getDefaultInstance())) {
+      if (res.getVersion() == 0) {
         throw new RuntimeException("Invalid response");
       }
     } catch (StatusRuntimeException e) {
@@ -146,35 +441,223 @@ final class KvClient {
   /**
    * Deletes the value of a random key.
    */
-  private void doDelete(KeyValueServiceBlockingStub stub) {
+  private void doDelete() {
     ByteString key = knownKeys.getRandomKey();
-    DeleteResponse res = stub.delete(DeleteRequest.newBuilder().setKey(key).build());
+    DeleteResponse res = stubFor(key).delete(DeleteRequest.newBuilder().setKey(key).build());
     knownKeys.remove(key);
     if (!res.equals(DeleteResponse.getDefaultInstance())) {
       throw new RuntimeException("Invalid response");
     }
   }
 
+  /**
+   * Creates a batch of random keys and values.
+   */
+  private void doBatchPut() {
+    List<Entry> entries = new ArrayList<>(workload.batchSize);
+    for (int i = 0; i < workload.batchSize; i++) {
+      entries.add(Entry.newBuilder()
+          .setKey(createRandomKey())
+          .setValue(randomValue())
+          .build());
+    }
+    List<BatchResult> results = fanOut(entries, Entry::getKey,
+        shardEntries -> BatchPutRequest.newBuilder().addAllEntries(shardEntries).build(),
+        KeyValueServiceFutureStub::batchPut, BatchPutResponse::getResultsList);
+    for (BatchResult result : results) {
+      checkResult(result);
+    }
+  }
+
+  /**
+   * Retrieves the values of a batch of random keys.
+   */
+  private void doBatchGet() {
+    List<ByteString> keys = new ArrayList<>(workload.batchSize);
+    for (int i = 0; i < workload.batchSize; i++) {
+      keys.add(knownKeys.getRandomKey());
+    }
+    List<BatchResult> results = fanOut(keys, Function.identity(),
+        shardKeys ->
+            BatchGetRequest.newBuilder().addAllKeys(shardKeys).setAcceptCompressed(true).build(),
+        KeyValueServiceFutureStub::batchGet, BatchGetResponse::getResultsList);
+    for (int i = 0; i < workload.batchSize; i++) {
+      BatchResult result = results.get(i);
+      if (result.getCode() == Code.NOT_FOUND.value()) {
+        knownKeys.remove(keys.get(i));
+        logger.log(Level.INFO, "Key not found");
+        continue;
+      }
+      checkResult(result);
+      if (result.getValue().size() < 1) {
+        throw new RuntimeException("Invalid response");
+      }
+    }
+  }
+
+  /**
+   * Updates or deletes a batch of random keys.
+   */
+  private void doBatch() {
+    List<BatchOperation> ops = new ArrayList<>(workload.batchSize);
+    for (int i = 0; i < workload.batchSize; i++) {
+      ByteString key = knownKeys.getRandomKey();
+      BatchOperation.Builder op = BatchOperation.newBuilder();
+      if (random.nextBoolean()) {
+        op.getUpdateBuilder().setKey(key).setValue(randomValue());
+      } else {
+        op.getDeleteBuilder().setKey(key);
+      }
+      ops.add(op.build());
+    }
+    List<BatchResult> results = fanOut(ops, KvClient::keyOf,
+        shardOps -> BatchRequest.newBuilder().addAllOperations(shardOps).build(),
+        KeyValueServiceFutureStub::batch, BatchResponse::getResultsList);
+    for (int i = 0; i < workload.batchSize; i++) {
+      BatchResult result = results.get(i);
+      if (ops.get(i).hasDelete() || result.getCode() == Code.NOT_FOUND.value()) {
+        knownKeys.remove(keyOf(ops.get(i)));
+        continue;
+      }
+      checkResult(result);
+    }
+  }
+
+  /**
+   * Sends the items of a batch to the shards owning their keys, as one request per shard, and
+   * returns the results in the same order as the items.  The requests are sent in parallel, so the
+   * batch takes about as long as the slowest shard rather than the sum of them.
+   */
+  private <T, ReqT, RespT> List<BatchResult> fanOut(
+      List<T> items,
+      Function<T, ByteString> keyOf,
+      Function<List<T>, ReqT> newRequest,
+      BiFunction<KeyValueServiceFutureStub, ReqT, ListenableFuture<RespT>> send,
+      Function<RespT, List<BatchResult>> resultsOf) {
+    List<List<Integer>> shardIndexes = new ArrayList<>(ring.getShardCount());
+    for (int shard = 0; shard < ring.getShardCount(); shard++) {
+      shardIndexes.add(new ArrayList<>());
+    }
+    for (int i = 0; i < items.size(); i++) {
+      shardIndexes.get(ring.shardFor(keyOf.apply(items.get(i)))).add(i);
+    }
+    List<ListenableFuture<RespT>> responses = new ArrayList<>(ring.getShardCount());
+    for (int shard = 0; shard < ring.getShardCount(); shard++) {
+      List<T> shardItems = new ArrayList<>(shardIndexes.get(shard).size());
+      for (int i : shardIndexes.get(shard)) {
+        shardItems.add(items.get(i));
+      }
+      responses.add(shardItems.isEmpty()
+          ? null
+          : send.apply(futureStubs.get(shard), newRequest.apply(shardItems)));
+    }
+    BatchResult[] results = new BatchResult[items.size()];
+    for (int shard = 0; shard < ring.getShardCount(); shard++) {
+      if (responses.get(shard) == null) {
+        continue;
+      }
+      List<BatchResult> shardResults = resultsOf.apply(await(responses.get(shard)));
+      List<Integer> indexes = shardIndexes.get(shard);
+      if (shardResults.size() != indexes.size()) {
+        throw new RuntimeException("Invalid response");
+      }
+      for (int i = 0; i < indexes.size(); i++) {
+        results[indexes.get(i)] = shardResults.get(i);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Waits for the response, and throws its status if the call failed.
+   */
+  private static <T> T await(ListenableFuture<T> response) {
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.cancel(true);
+      throw Status.CANCELLED.withCause(e).asRuntimeException();
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asRuntimeException();
+    }
+  }
+
+  /**
+   * Returns the key the operation acts on.
+   */
+  private static ByteString keyOf(BatchOperation op) {
+    switch (op.getOperationCase()) {
+      case CREATE:
+        return op.getCreate().getKey();
+      case RETRIEVE:
+        return op.getRetrieve().getKey();
+      case UPDATE:
+        return op.getUpdate().getKey();
+      case DELETE:
+        return op.getDelete().getKey();
+      case COMPARE_AND_SET:
+        return op.getCompareAndSet().getKey();
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  private KeyValueServiceBlockingStub stubFor(ByteString key) {
+    return blockingStubs.get(ring.shardFor(key));
+  }
+
+  /**
+   * Throws if the batch item did not succeed.
+   */
+  private static void checkResult(BatchResult result) {
+    if (result.getCode() != Code.OK.value()) {
+      throw Status.fromCodeValue(result.getCode()).asRuntimeException();
+    }
+  }
+
   /**
    * Creates and adds a key to the set of known keys.
    */
   private ByteString createRandomKey() {
     ByteString key;
     do {
-      key = randomBytes(MEAN_KEY_SIZE);
+      byte[] bytes = new byte[workload.sizeDistribution.next(random, workload.meanKeySize)];
+      random.nextBytes(bytes);
+      key = ByteString.copyFrom(bytes);
     } while (!knownKeys.add(key));
     return key;
   }
 
   /**
-   * Creates an exponentially sized byte string with a mean size.
+   * Creates a random value, sized according to the workload.
    */
-  private static ByteString randomBytes(int mean) {
-    Random random = new Random();
-    // An exponentially distributed random number.
-    int size = (int) Math.round(mean * -Math.log(1 - random.nextDouble()));
-    byte[] bytes = new byte[1 + size];
-    random.nextBytes(bytes);
-    return ByteString.copyFrom(bytes);
+  private ByteString randomValue() {
+    int size = workload.sizeDistribution.next(random, workload.meanValueSize);
+    byte[] pool = workload.compressibleValues ? CompressiblePool.BYTES : RANDOM_POOL;
+    if (size > pool.length) {
+      byte[] bytes = new byte[size];
+      random.nextBytes(bytes);
+      if (workload.compressibleValues) {
+        for (int i = 0; i < size; i++) {
+          bytes[i] = (byte) ('a' + (bytes[i] & 0xf));
+        }
+      }
+      return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+    return UnsafeByteOperations.unsafeWrap(pool, random.nextInt(pool.length - size + 1), size);
+  }
+
+  /**
+   * An operation sent on a pipeline, waiting for its response.
+   */
+  private static final class Pending {
+    final BatchOperation op;
+    final long startNanos;
+
+    Pending(BatchOperation op, long startNanos) {
+      this.op = op;
+      this.startNanos = startNanos;
+    }
   }
 }
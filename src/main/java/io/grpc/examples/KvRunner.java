@@ -1,12 +1,23 @@
 package io.grpc.examples;
 
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.NettyServerBuilder;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -21,10 +32,110 @@ import java.util.logging.Logger;
 public final class KvRunner {
   private static final Logger logger = Logger.getLogger(KvRunner.class.getName());
 
-  private static final long DURATION_SECONDS = 60;
+  private static final long DURATION_SECONDS = Long.getLong("kvstore.durationSeconds", 60);
 
-  private Server server;
-  private ManagedChannel channel;
+  /**
+   * The number of clients to run, each on its own thread.  The clients share the channels, and
+   * the rest of the load is described by the {@link Workload}.
+   */
+  private static final int CLIENTS = Integer.getInteger("kvstore.clients", 1);
+
+  /**
+   * The number of servers to split the keys over.  Each has its own store and listens on its own
+   * port, and the clients send each key to the server owning it.
+   */
+  private static final int SHARDS = Integer.getInteger("kvstore.shards", 1);
+
+  /**
+   * The number of channels, and so connections, to each server to spread the clients over.
+   */
+  private static final int CHANNELS = Integer.getInteger("kvstore.channels", 1);
+
+  /**
+   * If positive, keys and values are kept off-heap, using at most this many bytes.
+   */
+  private static final long OFF_HEAP_BYTES = Long.getLong("kvstore.offHeapBytes", 0);
+
+  /**
+   * If positive, the store is a cache using at most about this many bytes, and evicts entries to
+   * stay within it.
+   */
+  private static final long CACHE_BYTES = Long.getLong("kvstore.cacheBytes", 0);
+
+  /**
+   * Whether writes may give entries a time to live.  Like a size limit, this needs the cache
+   * layer, which is left out of the store when neither is used.
+   */
+  private static final boolean TTL = Boolean.getBoolean("kvstore.ttl");
+
+  /**
+   * If positive, values of at least this many bytes are stored compressed, when that makes them
+   * smaller.  Whether values are compressed is recorded in the log directory, since the logged
+   * values are stored the same way, and the server refuses to start if it changes.
+   */
+  private static final int VALUE_COMPRESSION_BYTES =
+      Integer.getInteger("kvstore.valueCompressionBytes", 0);
+
+  /**
+   * The compression of gRPC messages between the clients and servers, such as {@code gzip}.
+   * {@code identity} means none.
+   */
+  private static final String WIRE_COMPRESSION =
+      System.getProperty("kvstore.wireCompression", "identity");
+
+  /**
+   * How often to remove entries whose time to live has passed, besides when they are accessed.
+   */
+  private static final long EXPIRY_INTERVAL_MILLIS = 1000;
+
+  /**
+   * The number of threads that handle RPCs and run store operations.  Zero means a thread pool
+   * that grows as needed.  Since requests don't hold a thread while waiting out their simulated
+   * work, a small pool can still serve many concurrent requests.
+   */
+  private static final int SERVER_THREADS = Integer.getInteger("kvstore.serverThreads", 0);
+
+  /**
+   * If set, changes are logged to a write ahead log in this directory, and replayed on startup.
+   * Snapshots of the store are kept in the same directory.  With more than one shard, each shard
+   * uses a subdirectory of it, so the number of shards can't change once it holds data.
+   */
+  private static final String WAL_DIR = System.getProperty("kvstore.walDir");
+
+  /**
+   * When writes to the log are acknowledged.  One of {@code sync} or {@code async}.
+   */
+  private static final WriteAheadLog.Durability WAL_DURABILITY = WriteAheadLog.Durability.valueOf(
+      System.getProperty("kvstore.walDurability", "sync").toUpperCase(Locale.ROOT));
+
+  /**
+   * How often to snapshot the store and discard the log before it, if logging is on.  Zero turns
+   * snapshots off.
+   */
+  private static final long SNAPSHOT_INTERVAL_SECONDS =
+      Long.getLong("kvstore.snapshotIntervalSeconds", 300);
+
+  /**
+   * How often each server logs its metrics.  Zero only logs them when the servers stop.  They can
+   * also be read at any time with the {@code Stats} RPC.
+   */
+  private static final long STATS_INTERVAL_SECONDS =
+      Long.getLong("kvstore.statsIntervalSeconds", 0);
+
+  /**
+   * Batches of large values can easily exceed gRPC's default 4 MiB message limit.
+   */
+  private static final int MAX_MESSAGE_BYTES = 256 * 1024 * 1024;
+
+  private final List<Server> servers = new ArrayList<>();
+  private final List<ServerMetrics> serverMetrics = new ArrayList<>();
+  private ScheduledExecutorService serverScheduler;
+  private ExecutorService serverExecutor;
+  private final List<WriteAheadLog> logs = new ArrayList<>();
+  private ScheduledExecutorService snapshotScheduler;
+  private ScheduledExecutorService expiryScheduler;
+  private ScheduledExecutorService statsScheduler;
+  private final List<ManagedChannel> channels = new ArrayList<>();
 
   public static void main(String []args) throws Exception {
     KvRunner store = new KvRunner();
@@ -37,49 +148,219 @@ public final class KvRunner {
   }
 
   private void runClient() throws InterruptedException {
-    if (channel != null) {
+    if (!channels.isEmpty()) {
       throw new IllegalStateException("Already started");
     }
-    channel = ManagedChannelBuilder.forTarget("dns:///localhost:" + server.getPort())
-        .usePlaintext(true)
-        .build();
+    for (Server server : servers) {
+      for (int i = 0; i < CHANNELS; i++) {
+        channels.add(ManagedChannelBuilder.forTarget("dns:///localhost:" + server.getPort())
+            .usePlaintext(true)
+            .maxInboundMessageSize(MAX_MESSAGE_BYTES)
+            .build());
+      }
+    }
+    Workload workload = Workload.fromSystemProperties(CLIENTS);
+    LoadStats stats = new LoadStats();
+    ExecutorService clientExecutor = Executors.newFixedThreadPool(CLIENTS);
     ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     try {
       AtomicBoolean done = new AtomicBoolean();
-      KvClient client = new KvClient(channel);
-      logger.info("Starting");
+      List<Future<?>> clients = new ArrayList<>();
+      logger.log(Level.INFO, "Starting {0} clients on {1} channels to each of {2} shards",
+          new Object[]{CLIENTS, CHANNELS, SHARDS});
+      long start = System.nanoTime();
       scheduler.schedule(() -> done.set(true), DURATION_SECONDS, TimeUnit.SECONDS);
-      client.doClientWork(done);
-      double qps = (double) client.getRpcCount() / DURATION_SECONDS;
-      logger.log(Level.INFO, "Did {0} RPCs/s", new Object[]{qps});
+      CompressionInterceptor compression = newCompressionInterceptor();
+      for (int i = 0; i < CLIENTS; i++) {
+        // Each client uses one channel to every shard.
+        List<Channel> clientChannels = new ArrayList<>(SHARDS);
+        for (int shard = 0; shard < SHARDS; shard++) {
+          Channel channel = channels.get(shard * CHANNELS + i % CHANNELS);
+          clientChannels.add(
+              compression != null ? ClientInterceptors.intercept(channel, compression) : channel);
+        }
+        KvClient client = new KvClient(clientChannels, workload, stats);
+        clients.add(clientExecutor.submit(() -> client.doClientWork(done)));
+      }
+      for (Future<?> client : clients) {
+        try {
+          client.get();
+        } catch (ExecutionException e) {
+          done.set(true);
+          throw new RuntimeException("Client failed", e.getCause());
+        }
+      }
+      stats.log(System.nanoTime() - start);
     } finally {
       scheduler.shutdownNow();
-      channel.shutdownNow();
+      clientExecutor.shutdownNow();
+      for (ManagedChannel channel : channels) {
+        channel.shutdownNow();
+      }
+      channels.clear();
     }
   }
 
   private void startServer() throws IOException {
-    if (server != null) {
+    if (!servers.isEmpty()) {
       throw new IllegalStateException("Already started");
     }
-    server = ServerBuilder.forPort(0).addService(new KvService()).build();
-    server.start();
+    serverScheduler = Executors.newSingleThreadScheduledExecutor();
+    serverExecutor = SERVER_THREADS > 0
+        ? Executors.newFixedThreadPool(SERVER_THREADS)
+        : Executors.newCachedThreadPool();
+    if (CACHE_BYTES > 0 || TTL) {
+      expiryScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+    if (WAL_DIR != null && SNAPSHOT_INTERVAL_SECONDS > 0) {
+      snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+    if (WAL_DIR != null) {
+      DataLayout.check(Paths.get(WAL_DIR), SHARDS, VALUE_COMPRESSION_BYTES > 0);
+    }
+    ValueCodec codec = VALUE_COMPRESSION_BYTES > 0 ? new ValueCodec(VALUE_COMPRESSION_BYTES) : null;
+    CompressionInterceptor compression = newCompressionInterceptor();
+    for (int shard = 0; shard < SHARDS; shard++) {
+      ServerMetrics metrics = new ServerMetrics();
+      KvService service = new KvService(
+          newStore(shard, metrics), metrics, serverScheduler, serverExecutor, codec);
+      ServerServiceDefinition interceptedService = compression != null
+          ? ServerInterceptors.intercept(service, metrics, compression)
+          : ServerInterceptors.intercept(service, metrics);
+      Server server = NettyServerBuilder.forPort(0)
+          .executor(serverExecutor)
+          .maxMessageSize(MAX_MESSAGE_BYTES)
+          .addService(interceptedService)
+          .build();
+      servers.add(server);
+      serverMetrics.add(metrics);
+      server.start();
+    }
+    if (STATS_INTERVAL_SECONDS > 0) {
+      statsScheduler = Executors.newSingleThreadScheduledExecutor();
+      statsScheduler.scheduleAtFixedRate(this::logServerMetrics,
+          STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Returns the interceptor turning on message compression, or {@code null} if it is off.
+   */
+  private static CompressionInterceptor newCompressionInterceptor() {
+    if (WIRE_COMPRESSION.equals("identity")) {
+      return null;
+    }
+    return new CompressionInterceptor(WIRE_COMPRESSION);
+  }
+
+  private void logServerMetrics() {
+    for (int shard = 0; shard < serverMetrics.size(); shard++) {
+      serverMetrics.get(shard).log("shard-" + shard);
+    }
+  }
+
+  /**
+   * Creates the store of one shard, along with its log if logging is on, and adds gauges of it to
+   * the metrics.
+   */
+  private VersionedKvStore newStore(int shard, ServerMetrics metrics) throws IOException {
+    StripedKvStore stripedStore = new StripedKvStore();
+    metrics.addGauge("store.lockWaits", stripedStore::getLockWaits);
+    metrics.addGauge("store.lockWaitNanos", stripedStore::getLockWaitNanos);
+    metrics.addGauge("jvm.heapUsedBytes",
+        () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    VersionedKvStore store = stripedStore;
+    if (OFF_HEAP_BYTES > 0) {
+      OffHeapKvStore offHeapStore = new OffHeapKvStore(store, OFF_HEAP_BYTES);
+      metrics.addGauge("store.offHeapBytes", offHeapStore::getUsedBytes);
+      store = offHeapStore;
+    }
+    if (WAL_DIR != null) {
+      Path dir = DataLayout.shardDir(Paths.get(WAL_DIR), shard, SHARDS);
+      WriteAheadLog wal = WriteAheadLog.open(dir, WAL_DURABILITY, store);
+      logs.add(wal);
+      if (snapshotScheduler != null) {
+        KvStore loggedStore = store;
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+          try {
+            wal.checkpoint(loggedStore);
+          } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to snapshot store", e);
+          }
+        }, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+      }
+      DurableKvStore durableStore = new DurableKvStore(store, wal);
+      metrics.addGauge("wal.lockWaits", durableStore::getLockWaits);
+      metrics.addGauge("wal.lockWaitNanos", durableStore::getLockWaitNanos);
+      store = durableStore;
+    }
+    if (CACHE_BYTES == 0 && !TTL) {
+      metrics.addGauge("store.entries", stripedStore::getEntryCount);
+      return store;
+    }
+    CacheKvStore cache = new CacheKvStore(store, CACHE_BYTES);
+    metrics.addGauge("store.entries", cache::getEntryCount);
+    metrics.addGauge("store.bytes", cache::getUsedBytes);
+    metrics.addGauge("cache.lockWaits", cache::getLockWaits);
+    metrics.addGauge("cache.lockWaitNanos", cache::getLockWaitNanos);
+    expiryScheduler.scheduleWithFixedDelay(() -> {
+      try {
+        cache.expireEntries();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to expire entries", e);
+      }
+    }, EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    return cache;
   }
 
   private void stopServer() throws InterruptedException {
-    Server s = server;
-    if (s == null) {
+    if (servers.isEmpty()) {
       throw new IllegalStateException("Already stopped");
     }
-    server = null;
-    s.shutdown();
-    if (s.awaitTermination(1, TimeUnit.SECONDS)) {
-      return;
+    if (statsScheduler != null) {
+      statsScheduler.shutdownNow();
+      statsScheduler = null;
     }
-    s.shutdownNow();
-    if (s.awaitTermination(1, TimeUnit.SECONDS)) {
-      return;
+    logServerMetrics();
+    try {
+      for (Server s : servers) {
+        s.shutdown();
+      }
+      boolean terminated = true;
+      for (Server s : servers) {
+        if (!s.awaitTermination(1, TimeUnit.SECONDS)) {
+          s.shutdownNow();
+          terminated &= s.awaitTermination(1, TimeUnit.SECONDS);
+        }
+      }
+      if (!terminated) {
+        throw new RuntimeException("Unable to shutdown server");
+      }
+    } finally {
+      servers.clear();
+      serverMetrics.clear();
+      serverScheduler.shutdownNow();
+      serverScheduler = null;
+      serverExecutor.shutdownNow();
+      serverExecutor = null;
+      if (expiryScheduler != null) {
+        expiryScheduler.shutdownNow();
+        expiryScheduler = null;
+      }
+      if (snapshotScheduler != null) {
+        snapshotScheduler.shutdown();
+        // Let a snapshot in progress finish, rather than leave it half written.
+        snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        snapshotScheduler = null;
+      }
+      for (WriteAheadLog log : logs) {
+        try {
+          log.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Unable to close log", e);
+        }
+      }
+      logs.clear();
     }
-    throw new RuntimeException("Unable to shutdown server");
   }
 }
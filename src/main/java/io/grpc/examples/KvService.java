@@ -1,96 +1,776 @@
 package io.grpc.examples;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.proto.BatchGetRequest;
+import io.grpc.examples.proto.BatchGetResponse;
+import io.grpc.examples.proto.BatchOperation;
+import io.grpc.examples.proto.BatchPutRequest;
+import io.grpc.examples.proto.BatchPutResponse;
+import io.grpc.examples.proto.BatchRequest;
+import io.grpc.examples.proto.BatchResponse;
+import io.grpc.examples.proto.BatchResult;
+import io.grpc.examples.proto.CompareAndSetRequest;
+import io.grpc.examples.proto.CompareAndSetResponse;
 import io.grpc.examples.proto.CreateRequest;
 import io.grpc.examples.proto.CreateResponse;
 import io.grpc.examples.proto.DeleteRequest;
 import io.grpc.examples.proto.DeleteResponse;
+import io.grpc.examples.proto.Entry;
 import io.grpc.examples.proto.KeyValueServiceGrpc.KeyValueServiceImplBase;
+import io.grpc.examples.proto.PipelineRequest;
+import io.grpc.examples.proto.PipelineResponse;
 import io.grpc.examples.proto.RetrieveRequest;
 import io.grpc.examples.proto.RetrieveResponse;
+import io.grpc.examples.proto.ScanRequest;
+import io.grpc.examples.proto.ScanResponse;
+import io.grpc.examples.proto.StatsRequest;
+import io.grpc.examples.proto.StatsResponse;
 import io.grpc.examples.proto.UpdateRequest;
 import io.grpc.examples.proto.UpdateResponse;
+import io.grpc.examples.proto.ValueEncoding;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 
 /**
- * This is the actual server logic.  It includes a basic key value store, as well as implements
- * thread safe methods for creating, retrieving, updating, and deleting values.  (These are
- * commonly known as "CRUD" operations.)
+ * This is the actual server logic.  It implements thread safe methods for creating, retrieving,
+ * updating, and deleting values.  (These are commonly known as "CRUD" operations.)  The values
+ * themselves are kept in a {@link VersionedKvStore}, which allows independent keys to be accessed
+ * in parallel.
+ *
+ * <p>Every operation pays a fixed delay first, standing in for the backend work a real server
+ * would do.  The delay is scheduled rather than slept, and the operation then runs on the work
+ * executor, so requests waiting out their delay don't tie up a thread each.  The number of
+ * concurrent requests is therefore not limited by the size of any thread pool.
+ *
+ * <p>The batch methods apply many operations in a single call.  Each item gets its own result, and
+ * the simulated work is paid once per batch rather than once per item.
+ *
+ * <p>The pipeline method accepts a stream of operations and answers each one when it completes.
+ *
+ * <p>The scan method streams the entries in a range of keys, reading them from the store only as
+ * fast as the client takes them.
+ *
+ * <p>The stats method returns the {@link ServerMetrics} of the server, which must be installed as
+ * an interceptor of this service to record anything.
+ *
+ * <p>Every write gives the entry a new version, which is returned along with its value by
+ * retrieves.  The compare and set method only changes an entry that still has a given version, so
+ * that clients can read, change and write back a value without locking it, and retry if another
+ * write got there first.
+ *
+ * <p>Values may be compressed by a {@link ValueCodec} before they are stored.  Clients that accept
+ * compressed values are sent them as stored, and the rest are sent them decompressed.
+ *
+ * <p>Writes may give the entry a time to live, after which it is removed, if the store supports it.
+ * The store may also evict entries to stay within a memory limit, in which case they are simply
+ * not found.
  */
 final class KvService extends KeyValueServiceImplBase {
 
   private static final long READ_DELAY_MILLIS = 10;
   private static final long WRITE_DELAY_MILLIS = 50;
 
-  private final Map<ByteBuffer, ByteBuffer> store = new HashMap<>();
+  /**
+   * The most operations that may be outstanding on a single pipeline.  Once reached, no more
+   * requests are read from the stream until some complete.
+   */
+  private static final int PIPELINE_WINDOW = 4096;
+
+  /**
+   * The most entries, and roughly the most key and value bytes, sent in one scan response.
+   */
+  private static final int SCAN_CHUNK_ENTRIES = 256;
+  private static final int SCAN_CHUNK_BYTES = 1024 * 1024;
+
+  private static final BatchResult OK_RESULT =
+      BatchResult.newBuilder().setCode(Status.Code.OK.value()).build();
+
+  private final VersionedKvStore store;
+  private final ServerMetrics metrics;
+  private final ScheduledExecutorService scheduler;
+  private final Executor executor;
+  private final long readDelayMillis;
+  private final long writeDelayMillis;
+  /** Encodes values for storing, or {@code null} if they are stored as sent. */
+  private final ValueCodec codec;
+
+  /**
+   * Creates a service backed by the given store.  The scheduler times the simulated work, and the
+   * executor runs the operations once it is done.  Both are owned by the caller.  Operations may
+   * block briefly, such as when waiting for a log write, so the executor should not be an event
+   * loop.
+   */
+  KvService(VersionedKvStore store, ServerMetrics metrics, ScheduledExecutorService scheduler,
+      Executor executor) {
+    this(store, metrics, scheduler, executor, null);
+  }
+
+  /**
+   * Creates a service which stores values encoded by the codec, unless it is {@code null}.  The
+   * store must only hold values encoded the same way.
+   */
+  KvService(VersionedKvStore store, ServerMetrics metrics, ScheduledExecutorService scheduler,
+      Executor executor, ValueCodec codec) {
+    this(store, metrics, scheduler, executor, READ_DELAY_MILLIS, WRITE_DELAY_MILLIS, codec);
+  }
+
+  /**
+   * Creates a service with the given simulated work times.  With no delay, operations are run on
+   * the executor straight away, which is useful for measuring the service itself.
+   */
+  KvService(VersionedKvStore store, ServerMetrics metrics, ScheduledExecutorService scheduler,
+      Executor executor, long readDelayMillis, long writeDelayMillis) {
+    this(store, metrics, scheduler, executor, readDelayMillis, writeDelayMillis, null);
+  }
+
+  KvService(VersionedKvStore store, ServerMetrics metrics, ScheduledExecutorService scheduler,
+      Executor executor, long readDelayMillis, long writeDelayMillis, ValueCodec codec) {
+    this.store = store;
+    this.metrics = metrics;
+    this.scheduler = scheduler;
+    this.executor = executor;
+    this.readDelayMillis = readDelayMillis;
+    this.writeDelayMillis = writeDelayMillis;
+    this.codec = codec;
+  }
 
   @Override
-  public synchronized void create(
+  public void create(
       CreateRequest request, StreamObserver<CreateResponse> responseObserver) {
-    ByteBuffer key = request.getKey().asReadOnlyByteBuffer();
-    ByteBuffer value = request.getValue().asReadOnlyByteBuffer();
-    simulateWork(WRITE_DELAY_MILLIS);
-    if (store.putIfAbsent(key, value) == null) {
-      responseObserver.onNext(CreateResponse.getDefaultInstance());
-      responseObserver.onCompleted();
-      return;
-    }
-    responseObserver.onError(Status.ALREADY_EXISTS.asRuntimeException());
+    respondLater(writeDelayMillis, responseObserver, () -> {
+      BatchResult result =
+          durable(doCreate(request.getKey(), request.getValue(), request.getTtlMillis()));
+      if (isOk(result)) {
+        responseObserver.onNext(
+            CreateResponse.newBuilder().setVersion(result.getVersion()).build());
+        responseObserver.onCompleted();
+        return;
+      }
+      responseObserver.onError(toStatus(result).asRuntimeException());
+    });
   }
 
   @Override
-  public synchronized void retrieve(RetrieveRequest request,
+  public void retrieve(RetrieveRequest request,
       StreamObserver<RetrieveResponse> responseObserver) {
-    ByteBuffer key = request.getKey().asReadOnlyByteBuffer();
-    simulateWork(READ_DELAY_MILLIS);
-    ByteBuffer value = store.get(key);
-    if (value != null) {
+    respondLater(readDelayMillis, responseObserver, () -> {
+      BatchResult result = doRetrieve(request.getKey(), request.getAcceptCompressed());
+      if (isOk(result)) {
+        if (result.getEncoding() != ValueEncoding.IDENTITY) {
+          // Compressing the message again would gain little.
+          ((ServerCallStreamObserver<RetrieveResponse>) responseObserver)
+              .setMessageCompression(false);
+        }
+        responseObserver.onNext(RetrieveResponse.newBuilder()
+            .setValue(result.getValue())
+            .setVersion(result.getVersion())
+            .setEncoding(result.getEncoding())
+            .build());
+        responseObserver.onCompleted();
+        return;
+      }
+      responseObserver.onError(toStatus(result).asRuntimeException());
+    });
+  }
+
+  @Override
+  public void update(
+      UpdateRequest request, StreamObserver<UpdateResponse> responseObserver) {
+    respondLater(writeDelayMillis, responseObserver, () -> {
+      BatchResult result =
+          durable(doUpdate(request.getKey(), request.getValue(), request.getTtlMillis()));
+      if (!isOk(result)) {
+        responseObserver.onError(toStatus(result).asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(UpdateResponse.newBuilder().setVersion(result.getVersion()).build());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void compareAndSet(CompareAndSetRequest request,
+      StreamObserver<CompareAndSetResponse> responseObserver) {
+    respondLater(writeDelayMillis, responseObserver, () -> {
+      BatchResult result = durable(doCompareAndSet(request));
+      if (!isOk(result)) {
+        responseObserver.onError(toStatus(result).asRuntimeException());
+        return;
+      }
       responseObserver.onNext(
-          RetrieveResponse.newBuilder().setValue(ByteString.copyFrom(value.slice())).build());
+          CompareAndSetResponse.newBuilder().setVersion(result.getVersion()).build());
       responseObserver.onCompleted();
-      return;
+    });
+  }
+
+  @Override
+  public void delete(
+      DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
+    respondLater(writeDelayMillis, responseObserver, () -> {
+      BatchResult result = durable(doDelete(request.getKey()));
+      if (!isOk(result)) {
+        responseObserver.onError(toStatus(result).asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(DeleteResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void batchGet(
+      BatchGetRequest request, StreamObserver<BatchGetResponse> responseObserver) {
+    respondLater(readDelayMillis, responseObserver, () -> {
+      BatchGetResponse.Builder response = BatchGetResponse.newBuilder();
+      for (ByteString key : request.getKeysList()) {
+        response.addResults(doRetrieve(key, request.getAcceptCompressed()));
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void batchPut(
+      BatchPutRequest request, StreamObserver<BatchPutResponse> responseObserver) {
+    respondLater(writeDelayMillis, responseObserver, () -> {
+      BatchPutResponse.Builder response = BatchPutResponse.newBuilder();
+      for (Entry entry : request.getEntriesList()) {
+        if (entry.getEncoding() != ValueEncoding.IDENTITY) {
+          response.addResults(toResult(Status.INVALID_ARGUMENT
+              .withDescription("Values must be written uncompressed")));
+          continue;
+        }
+        response.addResults(doPut(entry.getKey(), entry.getValue(), entry.getTtlMillis()));
+      }
+      // The whole batch shares one wait for the log.
+      Status failure = awaitDurable();
+      if (failure != null) {
+        for (int i = 0; i < response.getResultsCount(); i++) {
+          if (isOk(response.getResults(i))) {
+            response.setResults(i, toResult(failure));
+          }
+        }
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    });
+  }
+
+  @Override
+  public void batch(BatchRequest request, StreamObserver<BatchResponse> responseObserver) {
+    long delay = readDelayMillis;
+    for (BatchOperation op : request.getOperationsList()) {
+      delay = Math.max(delay, delayMillis(op));
     }
-    responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+    respondLater(delay, responseObserver, () -> {
+      BatchResponse.Builder response = BatchResponse.newBuilder();
+      for (BatchOperation op : request.getOperationsList()) {
+        response.addResults(execute(op));
+      }
+      // The whole batch shares one wait for the log.
+      Status failure = awaitDurable();
+      if (failure != null) {
+        for (int i = 0; i < response.getResultsCount(); i++) {
+          if (isOk(response.getResults(i)) && isWrite(request.getOperations(i))) {
+            response.setResults(i, toResult(failure));
+          }
+        }
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    });
   }
 
   @Override
-  public synchronized void update(
-      UpdateRequest request, StreamObserver<UpdateResponse> responseObserver) {
-    ByteBuffer key = request.getKey().asReadOnlyByteBuffer();
-    ByteBuffer newValue = request.getValue().asReadOnlyByteBuffer();
-    simulateWork(WRITE_DELAY_MILLIS);
-    ByteBuffer oldValue = store.get(key);
-    if (oldValue == null) {
-      responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+  public StreamObserver<PipelineRequest> pipeline(
+      StreamObserver<PipelineResponse> responseObserver) {
+    return new PipelineObserver((ServerCallStreamObserver<PipelineResponse>) responseObserver);
+  }
+
+  @Override
+  public void scan(ScanRequest request, StreamObserver<ScanResponse> responseObserver) {
+    if (request.getLimit() < 0) {
+      responseObserver.onError(Status.INVALID_ARGUMENT
+          .withDescription("Negative limit: " + request.getLimit())
+          .asRuntimeException());
       return;
     }
-    store.replace(key, oldValue, newValue);
-    responseObserver.onNext(UpdateResponse.getDefaultInstance());
-    responseObserver.onCompleted();
+    ScanSender sender =
+        new ScanSender(request, (ServerCallStreamObserver<ScanResponse>) responseObserver);
+    respondLater(readDelayMillis, responseObserver, sender::start);
   }
 
   @Override
-  public synchronized void delete(
-      DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
-    ByteBuffer key = request.getKey().asReadOnlyByteBuffer();
-    simulateWork(WRITE_DELAY_MILLIS);
-    store.remove(key);
-    responseObserver.onNext(DeleteResponse.getDefaultInstance());
+  public void stats(StatsRequest request, StreamObserver<StatsResponse> responseObserver) {
+    // Not part of the simulated workload, so answered straight away.
+    responseObserver.onNext(metrics.getStats());
     responseObserver.onCompleted();
   }
 
-  private static void simulateWork(long millis) {
+  /**
+   * Runs the work on the executor once the delay has passed.
+   */
+  private void runLater(long delayMillis, Runnable work) {
+    if (delayMillis == 0) {
+      executor.execute(work);
+      return;
+    }
+    scheduler.schedule(() -> executor.execute(work), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs the work, which must complete the call, once the delay has passed.  If the work fails
+   * unexpectedly, the call is failed rather than left hanging.
+   */
+  private void respondLater(long delayMillis, StreamObserver<?> responseObserver, Runnable work) {
+    runLater(delayMillis, () -> {
+      try {
+        work.run();
+      } catch (RuntimeException e) {
+        responseObserver.onError(Status.fromThrowable(e).asRuntimeException());
+        throw e;
+      }
+    });
+  }
+
+  private long delayMillis(BatchOperation op) {
+    return isWrite(op) ? writeDelayMillis : readDelayMillis;
+  }
+
+  private static boolean isWrite(BatchOperation op) {
+    return op.getOperationCase() != BatchOperation.OperationCase.RETRIEVE;
+  }
+
+  private BatchResult execute(BatchOperation op) {
+    switch (op.getOperationCase()) {
+      case CREATE:
+        CreateRequest create = op.getCreate();
+        return doCreate(create.getKey(), create.getValue(), create.getTtlMillis());
+      case RETRIEVE:
+        RetrieveRequest retrieve = op.getRetrieve();
+        return doRetrieve(retrieve.getKey(), retrieve.getAcceptCompressed());
+      case UPDATE:
+        UpdateRequest update = op.getUpdate();
+        return doUpdate(update.getKey(), update.getValue(), update.getTtlMillis());
+      case DELETE:
+        return doDelete(op.getDelete().getKey());
+      case COMPARE_AND_SET:
+        return doCompareAndSet(op.getCompareAndSet());
+      default:
+        return toResult(Status.INVALID_ARGUMENT.withDescription("Missing operation"));
+    }
+  }
+
+  private BatchResult doCreate(ByteString key, ByteString value, long ttlMillis) {
+    if (ttlMillis < 0) {
+      return toResult(invalidTtl(ttlMillis));
+    }
+    try {
+      VersionedKvStore.WriteResult written = store.write(
+          toStoredBuffer(key), toStoredValue(value), VersionedKvStore.ABSENT, ttlMillis);
+      if (written != null) {
+        return toResult(written.version);
+      }
+      return toResult(Status.ALREADY_EXISTS);
+    } catch (StatusRuntimeException e) {
+      return toResult(e.getStatus());
+    }
+  }
+
+  private BatchResult doRetrieve(ByteString key, boolean acceptCompressed) {
+    VersionedKvStore.VersionedValue entry = store.retrieveVersioned(key.asReadOnlyByteBuffer());
+    if (entry == null) {
+      return toResult(Status.NOT_FOUND);
+    }
+    return BatchResult.newBuilder()
+        .setCode(Status.Code.OK.value())
+        .setValue(valueToSend(entry.value, acceptCompressed))
+        .setVersion(entry.version)
+        .setEncoding(encodingToSend(entry.value, acceptCompressed))
+        .build();
+  }
+
+  private BatchResult doUpdate(ByteString key, ByteString value, long ttlMillis) {
+    if (ttlMillis < 0) {
+      return toResult(invalidTtl(ttlMillis));
+    }
+    try {
+      VersionedKvStore.WriteResult written = store.write(
+          key.asReadOnlyByteBuffer(), toStoredValue(value), VersionedKvStore.PRESENT, ttlMillis);
+      if (written != null) {
+        return toResult(written.version);
+      }
+      return toResult(Status.NOT_FOUND);
+    } catch (StatusRuntimeException e) {
+      return toResult(e.getStatus());
+    }
+  }
+
+  private BatchResult doCompareAndSet(CompareAndSetRequest request) {
+    if (request.getTtlMillis() < 0) {
+      return toResult(invalidTtl(request.getTtlMillis()));
+    }
+    if (request.getExpectedVersion() < 0) {
+      return toResult(Status.INVALID_ARGUMENT
+          .withDescription("Negative expected_version: " + request.getExpectedVersion()));
+    }
+    try {
+      // An expected version of zero creates the entry, which keeps the key, so it must be a stored
+      // buffer.
+      long expected = request.getExpectedVersion();
+      ByteBuffer key = expected == VersionedKvStore.ABSENT
+          ? toStoredBuffer(request.getKey()) : request.getKey().asReadOnlyByteBuffer();
+      VersionedKvStore.WriteResult written =
+          store.write(key, toStoredValue(request.getValue()), expected, request.getTtlMillis());
+      if (written != null) {
+        return toResult(written.version);
+      }
+      if (expected == VersionedKvStore.ABSENT) {
+        return toResult(Status.ABORTED.withDescription("Entry already exists"));
+      }
+      return toResult(Status.NOT_FOUND);
+    } catch (StatusRuntimeException e) {
+      return toResult(e.getStatus());
+    }
+  }
+
+  private BatchResult doPut(ByteString key, ByteString value, long ttlMillis) {
+    if (ttlMillis < 0) {
+      return toResult(invalidTtl(ttlMillis));
+    }
+    try {
+      VersionedKvStore.WriteResult written =
+          store.write(toStoredBuffer(key), toStoredValue(value), VersionedKvStore.ANY, ttlMillis);
+      return toResult(written.version);
+    } catch (StatusRuntimeException e) {
+      return toResult(e.getStatus());
+    }
+  }
+
+  private BatchResult doDelete(ByteString key) {
     try {
-      TimeUnit.MILLISECONDS.sleep(millis);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new RuntimeException(e);
+      store.delete(key.asReadOnlyByteBuffer());
+      return OK_RESULT;
+    } catch (StatusRuntimeException e) {
+      return toResult(e.getStatus());
+    }
+  }
+
+  /**
+   * Waits until the changes made by this thread are durable, so that they can be acknowledged.
+   * Returns {@code null} once they are, or the reason they can't be.  Changes made for one call are
+   * all waited for at once, so that they share a sync of the log.
+   */
+  private Status awaitDurable() {
+    try {
+      store.awaitDurable();
+      return null;
+    } catch (StatusRuntimeException e) {
+      return e.getStatus();
+    }
+  }
+
+  /**
+   * Returns the result of a change once it is durable, or the failure if it can't be.  Even a
+   * write that stored nothing may have removed an expired entry, so every result waits.
+   */
+  private BatchResult durable(BatchResult result) {
+    Status failure = awaitDurable();
+    return failure != null && isOk(result) ? toResult(failure) : result;
+  }
+
+  private static Status invalidTtl(long ttlMillis) {
+    return Status.INVALID_ARGUMENT.withDescription("Negative ttl_millis: " + ttlMillis);
+  }
+
+  private static boolean isOk(BatchResult result) {
+    return result.getCode() == Status.Code.OK.value();
+  }
+
+  private static BatchResult toResult(long version) {
+    return BatchResult.newBuilder().setCode(Status.Code.OK.value()).setVersion(version).build();
+  }
+
+  private static BatchResult toResult(Status status) {
+    if (status.isOk()) {
+      return OK_RESULT;
+    }
+    BatchResult.Builder result = BatchResult.newBuilder().setCode(status.getCode().value());
+    if (status.getDescription() != null) {
+      result.setMessage(status.getDescription());
+    }
+    return result.build();
+  }
+
+  private static Status toStatus(BatchResult result) {
+    Status status = Status.fromCodeValue(result.getCode());
+    return result.getMessage().isEmpty() ? status : status.withDescription(result.getMessage());
+  }
+
+  /**
+   * Returns the value in the form it is stored.  Values the codec leaves as they are are stored
+   * like keys, without a copy.
+   */
+  private ByteBuffer toStoredValue(ByteString value) {
+    ByteBuffer encoded = codec != null ? codec.encode(value) : null;
+    return encoded != null ? encoded : toStoredBuffer(value);
+  }
+
+  /**
+   * Returns the bytes to send for a stored value: the value itself, or if the client accepts it,
+   * the value as compressed in the store.
+   */
+  private ByteString valueToSend(ByteBuffer stored, boolean acceptCompressed) {
+    ByteBuffer value = stored;
+    if (codec != null) {
+      value = acceptCompressed ? ValueCodec.payload(stored) : ValueCodec.decode(stored);
+    }
+    // Neither stored nor decoded buffers are ever modified, so they can be handed to the transport
+    // without a copy.
+    return UnsafeByteOperations.unsafeWrap(value);
+  }
+
+  private ValueEncoding encodingToSend(ByteBuffer stored, boolean acceptCompressed) {
+    if (codec == null || !acceptCompressed) {
+      return ValueEncoding.IDENTITY;
+    }
+    return ValueCodec.encodingOf(stored);
+  }
+
+  /**
+   * Returns a read only view of the bytes suitable for storing.  If the bytes are a slice of a
+   * larger buffer, such as the whole request message, they are copied so that the larger buffer
+   * is not kept alive by the store.
+   */
+  private static ByteBuffer toStoredBuffer(ByteString bytes) {
+    ByteBuffer buf = bytes.asReadOnlyByteBuffer();
+    if (buf.capacity() == buf.remaining()) {
+      return buf;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+    copy.put(buf);
+    copy.flip();
+    return copy.asReadOnlyBuffer();
+  }
+
+  /**
+   * Runs the operations of one pipeline call.  Each request is scheduled to complete after its
+   * simulated work, and its response is sent as soon as it does.  Inbound flow control is manual:
+   * a new request is read only when an earlier one completes and the transport can take more
+   * responses, which bounds the memory used by a single stream.
+   */
+  private final class PipelineObserver implements StreamObserver<PipelineRequest> {
+    private final ServerCallStreamObserver<PipelineResponse> responseObserver;
+
+    // All guarded by this.
+    private int outstanding;
+    private int deferredRequests;
+    private boolean halfClosed;
+    private boolean closed;
+
+    PipelineObserver(ServerCallStreamObserver<PipelineResponse> responseObserver) {
+      this.responseObserver = responseObserver;
+      responseObserver.disableAutoInboundFlowControl();
+      responseObserver.setOnReadyHandler(this::onReady);
+      responseObserver.setOnCancelHandler(this::onCancel);
+      responseObserver.request(PIPELINE_WINDOW);
+    }
+
+    @Override
+    public void onNext(PipelineRequest request) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        outstanding++;
+      }
+      runLater(delayMillis(request.getOperation()), () -> complete(request));
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      onCancel();
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+      halfClosed = true;
+      maybeClose();
+    }
+
+    private void complete(PipelineRequest request) {
+      BatchResult result;
+      try {
+        result = durable(execute(request.getOperation()));
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          outstanding--;
+          if (!closed) {
+            closed = true;
+            responseObserver.onError(Status.fromThrowable(e).asRuntimeException());
+          }
+        }
+        throw e;
+      }
+      synchronized (this) {
+        outstanding--;
+        if (closed) {
+          return;
+        }
+        responseObserver.onNext(
+            PipelineResponse.newBuilder().setTag(request.getTag()).setResult(result).build());
+        if (responseObserver.isReady()) {
+          responseObserver.request(1);
+        } else {
+          deferredRequests++;
+        }
+        maybeClose();
+      }
+    }
+
+    private synchronized void onReady() {
+      if (!closed && deferredRequests > 0) {
+        responseObserver.request(deferredRequests);
+        deferredRequests = 0;
+      }
+    }
+
+    private synchronized void onCancel() {
+      closed = true;
+    }
+
+    private void maybeClose() {
+      assert Thread.holdsLock(this);
+      if (halfClosed && outstanding == 0 && !closed) {
+        closed = true;
+        responseObserver.onCompleted();
+      }
+    }
+  }
+
+  /**
+   * Sends the entries of one scan call, a chunk per response.  A chunk is only read from the store
+   * when the transport is ready to send it, so a scan of any size holds at most one chunk in memory
+   * and does not run ahead of a slow client.
+   */
+  private final class ScanSender {
+    private final ServerCallStreamObserver<ScanResponse> responseObserver;
+    /** The end of the range, or {@code null} if there is none. */
+    private final ByteBuffer endKey;
+    private final int limit;
+    private final boolean acceptCompressed;
+
+    // All guarded by this.
+    /** Where to continue the scan from. */
+    private ByteBuffer nextKey;
+    private boolean inclusive;
+    private int sent;
+    private boolean started;
+    private boolean closed;
+    // Only used while filling a chunk.
+    private ScanResponse.Builder chunk;
+    private int chunkBytes;
+    private boolean chunkFull;
+
+    ScanSender(ScanRequest request, ServerCallStreamObserver<ScanResponse> responseObserver) {
+      this.responseObserver = responseObserver;
+      this.limit = request.getLimit();
+      this.acceptCompressed = request.getAcceptCompressed();
+      ByteBuffer prefix = request.getPrefix().asReadOnlyByteBuffer();
+      ByteBuffer start = request.getStartKey().asReadOnlyByteBuffer();
+      nextKey = KeyOrder.compare(start, prefix) >= 0 ? start : prefix;
+      inclusive = true;
+      ByteBuffer resumeToken = request.getResumeToken().asReadOnlyByteBuffer();
+      if (!request.getResumeToken().isEmpty() && KeyOrder.compare(resumeToken, nextKey) >= 0) {
+        // The token is the last key sent, so carry on just after it.
+        nextKey = resumeToken;
+        inclusive = false;
+      }
+      ByteBuffer end = request.getEndKey().isEmpty()
+          ? null : request.getEndKey().asReadOnlyByteBuffer();
+      ByteBuffer prefixEnd = KeyOrder.prefixEnd(prefix);
+      if (end == null || (prefixEnd != null && KeyOrder.compare(prefixEnd, end) < 0)) {
+        end = prefixEnd;
+      }
+      this.endKey = end;
+      responseObserver.setOnReadyHandler(this::onReady);
+      responseObserver.setOnCancelHandler(this::onCancel);
+    }
+
+    synchronized void start() {
+      started = true;
+      sendChunks();
+    }
+
+    private synchronized void onReady() {
+      if (started) {
+        sendChunks();
+      }
+    }
+
+    private synchronized void onCancel() {
+      closed = true;
+    }
+
+    private void sendChunks() {
+      assert Thread.holdsLock(this);
+      try {
+        while (!closed && responseObserver.isReady()) {
+          boolean more = fillChunk();
+          if (chunk.getEntriesCount() > 0) {
+            chunk.setResumeToken(UnsafeByteOperations.unsafeWrap(nextKey));
+            responseObserver.onNext(chunk.build());
+          }
+          chunk = null;
+          if (!more) {
+            closed = true;
+            responseObserver.onCompleted();
+          }
+        }
+      } catch (RuntimeException e) {
+        closed = true;
+        responseObserver.onError(Status.fromThrowable(e).asRuntimeException());
+      }
+    }
+
+    /**
+     * Reads the next chunk of entries from the store.  Returns {@code true} if there may be more
+     * entries to send after it.
+     */
+    private boolean fillChunk() {
+      chunk = ScanResponse.newBuilder();
+      chunkBytes = 0;
+      chunkFull = false;
+      store.scan(nextKey, inclusive, endKey, this::addToChunk);
+      return chunkFull;
+    }
+
+    private boolean addToChunk(ByteBuffer key, ByteBuffer value) {
+      if (chunk.getEntriesCount() == SCAN_CHUNK_ENTRIES || chunkBytes >= SCAN_CHUNK_BYTES) {
+        // Another entry exists, so the scan isn't finished.
+        chunkFull = true;
+        return false;
+      }
+      // Stored buffers are never modified, so they can be sent without a copy.
+      ByteString valueToSend = valueToSend(value, acceptCompressed);
+      chunk.addEntries(Entry.newBuilder()
+          .setKey(UnsafeByteOperations.unsafeWrap(key))
+          .setValue(valueToSend)
+          .setEncoding(encodingToSend(value, acceptCompressed)));
+      chunkBytes += key.remaining() + valueToSend.size();
+      nextKey = key;
+      inclusive = false;
+      sent++;
+      return limit == 0 || sent < limit;
     }
   }
 }
@@ -0,0 +1,66 @@
+package io.grpc.examples;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * The storage engine behind {@link KvService}.  Implementations must be thread safe, since the
+ * service calls into them concurrently from many RPC threads without any outside locking.
+ */
+interface KvStore {
+
+  /**
+   * Stores the value if the key is not already present.  Returns {@code true} if the value was
+   * stored.
+   */
+  boolean create(ByteBuffer key, ByteBuffer value);
+
+  /**
+   * Returns the value of the key, or {@code null} if it is not present.
+   */
+  ByteBuffer retrieve(ByteBuffer key);
+
+  /**
+   * Replaces the value of the key if it is already present.  Returns the previous value, or
+   * {@code null} if the key was not present and nothing was stored.
+   */
+  ByteBuffer update(ByteBuffer key, ByteBuffer value);
+
+  /**
+   * Stores the value, replacing the existing value if the key is already present.  Returns the
+   * previous value, or {@code null} if there was none.
+   */
+  ByteBuffer put(ByteBuffer key, ByteBuffer value);
+
+  /**
+   * Removes the key, if present.  Returns the removed value, or {@code null} if there was none.
+   */
+  ByteBuffer delete(ByteBuffer key);
+
+  /**
+   * Calls the action with each key and value in the store.  The iteration is weakly consistent:
+   * entries changed while it is in progress may or may not be seen, but every entry that is
+   * present for the whole iteration is seen exactly once.  The action is not called while holding
+   * any lock of the store.
+   */
+  void forEach(BiConsumer<ByteBuffer, ByteBuffer> action);
+
+  /**
+   * Calls the action with each entry whose key is in a range, in {@link KeyOrder}, until the action
+   * returns {@code false}.  The range starts at {@code fromKey}, which is included only if
+   * {@code inclusive} is true, and ends just before {@code toKey}, or at the last key if it is
+   * {@code null}.  The iteration is weakly consistent in the same way as {@link #forEach}, and the
+   * action is not called while holding any lock of the store.
+   */
+  void scan(ByteBuffer fromKey, boolean inclusive, ByteBuffer toKey,
+      BiPredicate<ByteBuffer, ByteBuffer> action);
+
+  /**
+   * Waits until the changes made by this thread are durable, for stores that log them.  Writes
+   * return before then, so that a caller holding locks of its own can release them first, and so
+   * that several changes can be waited for at once.  Nothing may be acknowledged as written until
+   * this returns.  Stores that keep nothing on disk return straight away.
+   */
+  default void awaitDurable() {}
+}
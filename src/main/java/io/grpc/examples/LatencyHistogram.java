@@ -0,0 +1,104 @@
+package io.grpc.examples;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies, in nanoseconds.  Values are counted in log-linear buckets:
+ * each power of two is split into 32 equal sub-buckets, so a recorded value is known to within
+ * about 3%.  Recording is a few atomic increments, which makes it cheap enough to use on every
+ * request from many threads at once.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(index(nanos));
+    count.increment();
+    sum.add(nanos);
+    long prevMax;
+    while (nanos > (prevMax = max.get()) && !max.compareAndSet(prevMax, nanos)) {}
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getMaxNanos() {
+    return max.get();
+  }
+
+  double getMeanNanos() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns the value below which the given percentage of recorded values fall, rounded up to
+   * the end of its bucket.  Returns 0 if nothing has been recorded.
+   */
+  long getPercentileNanos(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Returns a one line summary, such as {@code "n=1000 mean=1.20ms p50=1.10ms ..."}.
+   */
+  String summary() {
+    return String.format("n=%d mean=%s p50=%s p99=%s p999=%s max=%s",
+        getCount(), millis((long) getMeanNanos()), millis(getPercentileNanos(50)),
+        millis(getPercentileNanos(99)), millis(getPercentileNanos(99.9)), millis(getMaxNanos()));
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    // value >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS).
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  private static long highestValue(int index) {
+    int bucket = index / SUB_BUCKETS;
+    int sub = index % SUB_BUCKETS;
+    if (bucket == 0) {
+      return sub;
+    }
+    int shift = bucket - 1;
+    return (((long) (SUB_BUCKETS + sub + 1)) << shift) - 1;
+  }
+}
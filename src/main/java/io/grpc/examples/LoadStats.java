@@ -0,0 +1,66 @@
+package io.grpc.examples;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latencies of the operations done by one or more {@link KvClient}s, kept per kind of operation.
+ * Safe to record into from many threads.
+ */
+final class LoadStats {
+  private static final Logger logger = Logger.getLogger(LoadStats.class.getName());
+
+  enum Op {
+    CREATE,
+    RETRIEVE,
+    UPDATE,
+    DELETE,
+    BATCH_GET,
+    BATCH_PUT,
+    BATCH,
+  }
+
+  private final Map<Op, LatencyHistogram> histograms = new EnumMap<>(Op.class);
+
+  LoadStats() {
+    for (Op op : Op.values()) {
+      histograms.put(op, new LatencyHistogram());
+    }
+  }
+
+  void record(Op op, long nanos) {
+    histograms.get(op).record(nanos);
+  }
+
+  /**
+   * Returns the total number of operations recorded.
+   */
+  long getCount() {
+    long count = 0;
+    for (LatencyHistogram histogram : histograms.values()) {
+      count += histogram.getCount();
+    }
+    return count;
+  }
+
+  /**
+   * Logs the throughput and latency of each kind of operation that was done, given how long the
+   * clients ran for.
+   */
+  void log(long elapsedNanos) {
+    double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    for (Map.Entry<Op, LatencyHistogram> entry : histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      if (histogram.getCount() == 0) {
+        continue;
+      }
+      logger.log(Level.INFO, "{0}: {1} ops/s {2}", new Object[]{
+          entry.getKey(), String.format("%.1f", histogram.getCount() / seconds),
+          histogram.summary()});
+    }
+    logger.log(Level.INFO, "Did {0} RPCs/s", String.format("%.1f", getCount() / seconds));
+  }
+}
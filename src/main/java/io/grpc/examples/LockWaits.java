@@ -0,0 +1,38 @@
+package io.grpc.examples;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes locks while measuring how often, and for how long, threads had to wait for one held by
+ * another thread, to show how much a group of locks is contended.  Taking a free lock doesn't read
+ * the clock, so this costs next to nothing unless there is contention.
+ */
+final class LockWaits {
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+
+  void lock(ReentrantLock lock) {
+    if (lock.tryLock()) {
+      return;
+    }
+    long start = System.nanoTime();
+    lock.lock();
+    waitNanos.add(System.nanoTime() - start);
+    waits.increment();
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for a lock.
+   */
+  long getWaits() {
+    return waits.sum();
+  }
+
+  /**
+   * Returns the total time threads spent waiting for locks.
+   */
+  long getWaitNanos() {
+    return waitNanos.sum();
+  }
+}
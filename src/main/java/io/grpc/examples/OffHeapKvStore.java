@@ -0,0 +1,122 @@
+package io.grpc.examples;
+
+import io.grpc.Status;
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link VersionedKvStore} which copies keys and values into direct (off-heap) buffers before
+ * handing them to another store.  Large values then no longer live on the Java heap, so they do not
+ * add to GC work.  The total number of key and value bytes held is limited to a fixed budget;
+ * writes that would exceed it fail with {@link Status#RESOURCE_EXHAUSTED}.
+ *
+ * <p>Stored buffers are never written to after they are stored, so callers may read from them
+ * without holding any lock.  The native memory behind a buffer is released by the JVM once the
+ * buffer is no longer referenced and the GC has collected it, which may be well after its value was
+ * replaced or deleted.  The budget only counts live bytes, so the JVM's direct memory limit has to
+ * leave room for garbage that has not been collected yet.
+ */
+final class OffHeapKvStore implements VersionedKvStore {
+
+  private final VersionedKvStore delegate;
+  private final long maxBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  OffHeapKvStore(VersionedKvStore delegate, long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.delegate = delegate;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the number of key and value bytes currently stored.
+   */
+  long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  @Override
+  public ByteBuffer retrieve(ByteBuffer key) {
+    return delegate.retrieve(key);
+  }
+
+  @Override
+  public VersionedValue retrieveVersioned(ByteBuffer key) {
+    return delegate.retrieveVersioned(key);
+  }
+
+  @Override
+  public WriteResult write(ByteBuffer key, ByteBuffer value, long expected, long ttlMillis) {
+    // An existing key is kept by the delegate, so the key only needs copying if it may be new.
+    boolean mayAdd = expected == ABSENT || expected == ANY;
+    int keySize = mayAdd ? key.remaining() : 0;
+    int size = keySize + value.remaining();
+    reserve(size);
+    WriteResult result;
+    try {
+      result = delegate.write(mayAdd ? copyOf(key) : key, copyOf(value), expected, ttlMillis);
+    } catch (RuntimeException e) {
+      release(size);
+      throw e;
+    }
+    if (result == null) {
+      release(size);
+    } else if (result.oldValue != null) {
+      // The old key stays in place, so any copy made here is dropped along with the old value.
+      release(keySize + result.oldValue.remaining());
+    }
+    return result;
+  }
+
+  @Override
+  public ByteBuffer delete(ByteBuffer key) {
+    ByteBuffer oldValue = delegate.delete(key);
+    if (oldValue != null) {
+      release(key.remaining() + oldValue.remaining());
+    }
+    return oldValue;
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteBuffer, ByteBuffer> action) {
+    delegate.forEach(action);
+  }
+
+  @Override
+  public void scan(ByteBuffer fromKey, boolean inclusive, ByteBuffer toKey,
+      BiPredicate<ByteBuffer, ByteBuffer> action) {
+    delegate.scan(fromKey, inclusive, toKey, action);
+  }
+
+  @Override
+  public void awaitDurable() {
+    delegate.awaitDurable();
+  }
+
+  private void reserve(int size) {
+    long used;
+    do {
+      used = usedBytes.get();
+      if (used + size > maxBytes) {
+        throw Status.RESOURCE_EXHAUSTED
+            .withDescription("Off-heap budget of " + maxBytes + " bytes exceeded")
+            .asRuntimeException();
+      }
+    } while (!usedBytes.compareAndSet(used, used + size));
+  }
+
+  private void release(int size) {
+    usedBytes.addAndGet(-size);
+  }
+
+  private static ByteBuffer copyOf(ByteBuffer src) {
+    ByteBuffer dst = ByteBuffer.allocateDirect(src.remaining());
+    dst.put(src.duplicate());
+    dst.flip();
+    return dst.asReadOnlyBuffer();
+  }
+}
@@ -0,0 +1,181 @@
+package io.grpc.examples;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.examples.proto.MethodStats;
+import io.grpc.examples.proto.StatsResponse;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts the calls to a server, and how long they take, per method.  It is installed as a
+ * {@link ServerInterceptor}, so the service itself doesn't need to record anything.  Recording
+ * only uses lock free counters and a {@link LatencyHistogram}, so it is cheap enough to leave on
+ * under full load.
+ *
+ * <p>Gauges, such as the number of entries in the store, can also be added.  They are read only
+ * when the metrics are.
+ */
+final class ServerMetrics implements ServerInterceptor {
+  private static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+
+  private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+  /**
+   * Adds a value to report along with the method metrics.
+   */
+  void addGauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    String method = call.getMethodDescriptor().getFullMethodName();
+    MethodMetrics metrics = methods.get(method);
+    if (metrics == null) {
+      metrics = methods.computeIfAbsent(method, m -> new MethodMetrics());
+    }
+    RecordingCall<ReqT, RespT> recordingCall = new RecordingCall<>(call, metrics);
+    return new RecordingListener<>(next.startCall(recordingCall, headers), recordingCall);
+  }
+
+  /**
+   * Returns the current metrics.
+   */
+  StatsResponse getStats() {
+    StatsResponse.Builder response = StatsResponse.newBuilder();
+    for (Map.Entry<String, MethodMetrics> entry : methods.entrySet()) {
+      MethodMetrics metrics = entry.getValue();
+      LatencyHistogram latency = metrics.latency;
+      response.addMethods(MethodStats.newBuilder()
+          .setMethod(entry.getKey())
+          .setActiveCalls(metrics.activeCalls.sum())
+          .setCalls(latency.getCount())
+          .setErrors(metrics.errors.sum())
+          .setMessagesReceived(metrics.messagesReceived.sum())
+          .setMessagesSent(metrics.messagesSent.sum())
+          .setBytesReceived(metrics.bytesReceived.sum())
+          .setBytesSent(metrics.bytesSent.sum())
+          .setMeanNanos((long) latency.getMeanNanos())
+          .setP50Nanos(latency.getPercentileNanos(50))
+          .setP99Nanos(latency.getPercentileNanos(99))
+          .setP999Nanos(latency.getPercentileNanos(99.9))
+          .setMaxNanos(latency.getMaxNanos()));
+    }
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      response.putGauges(entry.getKey(), entry.getValue().getAsLong());
+    }
+    return response.build();
+  }
+
+  /**
+   * Logs the current metrics, with a line per method that has been called.
+   */
+  void log(String name) {
+    for (Map.Entry<String, MethodMetrics> entry : methods.entrySet()) {
+      MethodMetrics metrics = entry.getValue();
+      logger.log(Level.INFO, "{0} {1}: {2}", new Object[]{
+          name, entry.getKey(), String.format("active=%d errors=%d in=%dB out=%dB %s",
+              metrics.activeCalls.sum(), metrics.errors.sum(), metrics.bytesReceived.sum(),
+              metrics.bytesSent.sum(), metrics.latency.summary())});
+    }
+    StringBuilder values = new StringBuilder();
+    for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      values.append(' ').append(entry.getKey()).append('=').append(entry.getValue().getAsLong());
+    }
+    logger.log(Level.INFO, "{0}:{1}", new Object[]{name, values});
+  }
+
+  private static long sizeOf(Object message) {
+    // The size is kept by the message once computed, so this doesn't add to serializing it.
+    return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+  }
+
+  private static final class MethodMetrics {
+    final LongAdder activeCalls = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder();
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  private static final class RecordingCall<ReqT, RespT>
+      extends SimpleForwardingServerCall<ReqT, RespT> {
+    final MethodMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    RecordingCall(ServerCall<ReqT, RespT> call, MethodMetrics metrics) {
+      super(call);
+      this.metrics = metrics;
+      metrics.activeCalls.increment();
+    }
+
+    @Override
+    public void sendMessage(RespT message) {
+      metrics.messagesSent.increment();
+      metrics.bytesSent.add(sizeOf(message));
+      super.sendMessage(message);
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      finish(status);
+      super.close(status, trailers);
+    }
+
+    /**
+     * Records the end of the call.  A call that is cancelled may still be closed afterwards, so
+     * only the first end counts.
+     */
+    void finish(Status status) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      metrics.latency.record(System.nanoTime() - startNanos);
+      metrics.activeCalls.decrement();
+      if (!status.isOk()) {
+        metrics.errors.increment();
+      }
+    }
+  }
+
+  private static final class RecordingListener<ReqT>
+      extends SimpleForwardingServerCallListener<ReqT> {
+    private final RecordingCall<ReqT, ?> call;
+
+    RecordingListener(ServerCall.Listener<ReqT> listener, RecordingCall<ReqT, ?> call) {
+      super(listener);
+      this.call = call;
+    }
+
+    @Override
+    public void onMessage(ReqT message) {
+      call.metrics.messagesReceived.increment();
+      call.metrics.bytesReceived.add(sizeOf(message));
+      super.onMessage(message);
+    }
+
+    @Override
+    public void onCancel() {
+      call.finish(Status.CANCELLED);
+      super.onCancel();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package io.grpc.examples;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A point in time copy of a {@link KvStore}, stored as a directory of memory-mapped segment files.
+ * Each segment holds a run of records in the same format as the {@link WriteAheadLog}, and is at
+ * most {@link #SEGMENT_BYTES} long unless a single record is larger.
+ *
+ * <p>A snapshot is written to a temporary directory which is renamed into place once every segment
+ * is on disk, so a snapshot directory that exists is always complete.  Loading a snapshot maps
+ * each segment and hands the store read only slices of the mapping, rather than copying the keys
+ * and values onto the heap.  The pages are then read in lazily as they are used, which makes
+ * loading a large snapshot fast.
+ */
+final class Snapshot {
+  private static final Logger logger = Logger.getLogger(Snapshot.class.getName());
+
+  private static final long SEGMENT_BYTES = 1L << 30;
+
+  private static final Pattern SNAPSHOT_DIR = Pattern.compile("snapshot-(\\d+)");
+  private static final Pattern INCOMPLETE_SNAPSHOT_DIR = Pattern.compile("snapshot-(\\d+)\\.tmp");
+
+  private Snapshot() {}
+
+  /**
+   * Writes a snapshot of the store with the given generation.
+   */
+  static void write(Path dir, long generation, KvStore store) throws IOException {
+    Path tmp = dir.resolve(snapshotName(generation) + ".tmp");
+    Files.createDirectory(tmp);
+    SegmentWriter writer = new SegmentWriter(tmp);
+    try {
+      store.forEach((key, value) -> {
+        try {
+          writer.write(key, value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      writer.finish();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      writer.close();
+    }
+    WriteAheadLog.syncDirectory(tmp);
+    Files.move(tmp, dir.resolve(snapshotName(generation)), StandardCopyOption.ATOMIC_MOVE);
+    // The caller deletes the log generations this replaces, so the rename must be durable first.
+    WriteAheadLog.syncDirectory(dir);
+  }
+
+  /**
+   * Puts every entry of the snapshot with the given generation into the store.
+   */
+  static void load(Path dir, long generation, KvStore store) throws IOException {
+    Path snapshot = dir.resolve(snapshotName(generation));
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshot, "segment-*.dat")) {
+      for (Path file : files) {
+        segments.add(file);
+      }
+    }
+    Collections.sort(segments);
+    long records = 0;
+    for (Path segment : segments) {
+      MappedByteBuffer map;
+      try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+        // The mapping stays valid after the channel is closed.
+        map = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+      while (map.hasRemaining()) {
+        if (map.remaining() < WriteAheadLog.HEADER_BYTES) {
+          throw new IOException("Truncated record in " + segment);
+        }
+        int keyLength = map.getInt();
+        int valueLength = map.getInt();
+        int checksum = map.getInt();
+        if (keyLength < 0 || valueLength < 0
+            || (long) keyLength + valueLength > map.remaining()) {
+          throw new IOException("Corrupt record in " + segment);
+        }
+        ByteBuffer key = slice(map, keyLength);
+        ByteBuffer value = slice(map, valueLength);
+        if (WriteAheadLog.checksum(key, value) != checksum) {
+          throw new IOException("Checksum mismatch in " + segment);
+        }
+        store.put(key, value);
+        records++;
+      }
+    }
+    logger.log(Level.INFO, "Loaded {0} records from {1}", new Object[]{records, snapshot});
+  }
+
+  /**
+   * Returns the generation of the newest complete snapshot in the directory, or -1 if there is
+   * none.
+   */
+  static long latestGeneration(Path dir) throws IOException {
+    List<Long> gens = generations(dir, SNAPSHOT_DIR);
+    return gens.isEmpty() ? -1 : gens.get(gens.size() - 1);
+  }
+
+  /**
+   * Deletes every snapshot with a generation less than the given one.
+   */
+  static void deleteOlderThan(Path dir, long generation) throws IOException {
+    for (long gen : generations(dir, SNAPSHOT_DIR)) {
+      if (gen < generation) {
+        deleteRecursively(dir.resolve(snapshotName(gen)));
+      }
+    }
+  }
+
+  /**
+   * Deletes any snapshots that were still being written when the process stopped.
+   */
+  static void deleteIncomplete(Path dir) throws IOException {
+    for (long gen : generations(dir, INCOMPLETE_SNAPSHOT_DIR)) {
+      deleteRecursively(dir.resolve(snapshotName(gen) + ".tmp"));
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buf, int length) {
+    ByteBuffer slice = buf.slice();
+    slice.limit(length);
+    buf.position(buf.position() + length);
+    return slice.asReadOnlyBuffer();
+  }
+
+  private static String snapshotName(long generation) {
+    return String.format("snapshot-%016d", generation);
+  }
+
+  private static List<Long> generations(Path dir, Pattern pattern) throws IOException {
+    List<Long> gens = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Matcher m = pattern.matcher(file.getFileName().toString());
+        if (m.matches()) {
+          gens.add(Long.parseLong(m.group(1)));
+        }
+      }
+    }
+    Collections.sort(gens);
+    return gens;
+  }
+
+  private static void deleteRecursively(Path snapshot) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshot)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(snapshot);
+  }
+
+  /**
+   * Writes records into a sequence of mapped segment files.
+   */
+  private static final class SegmentWriter {
+    private final Path dir;
+    private int segmentCount;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+
+    SegmentWriter(Path dir) {
+      this.dir = dir;
+    }
+
+    void write(ByteBuffer key, ByteBuffer value) throws IOException {
+      ByteBuffer header = WriteAheadLog.header(key, value);
+      long size = (long) header.remaining() + key.remaining() + value.remaining();
+      if (map == null || map.remaining() < size) {
+        nextSegment(Math.max(size, SEGMENT_BYTES));
+      }
+      map.put(header);
+      map.put(key.duplicate());
+      map.put(value.duplicate());
+    }
+
+    /**
+     * Syncs the last segment to disk.  Every earlier segment was synced when it filled up.
+     */
+    void finish() throws IOException {
+      finishSegment();
+    }
+
+    void close() throws IOException {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+        map = null;
+      }
+    }
+
+    private void nextSegment(long size) throws IOException {
+      finishSegment();
+      close();
+      Path file = dir.resolve(String.format("segment-%04d.dat", segmentCount++));
+      channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      map = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    private void finishSegment() throws IOException {
+      if (map == null) {
+        return;
+      }
+      map.force();
+      // Drop the unused tail of the mapping, so that loading can read the file to the end.
+      channel.truncate(map.position());
+      channel.force(true);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package io.grpc.examples;
+
+import io.grpc.Status;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * A {@link VersionedKvStore} which splits the keys across a number of independently locked stripes.
+ * Keys that land in different stripes can be read and written in parallel, so throughput scales
+ * with the number of threads rather than being serialized on a single lock.  Each stripe keeps its
+ * entries in a {@link KeyTable}, and the hash of a key is computed once per operation and used both
+ * to pick the stripe and to find the key in it.
+ *
+ * <p>The keys are also kept in a concurrent skip list, in {@link KeyOrder}, so that ranges of them
+ * can be scanned.  The index is only changed when a key is added or removed, so updates don't pay
+ * for it, and scans look up each value in the stripes.
+ *
+ * <p>Each stripe counts versions on its own, under its lock, starting from the time the store was
+ * created in nanoseconds.  Versions of a key always come from the same stripe, and a restart
+ * starts above any version given out before it, unless the clock is set back or a stripe took
+ * more than one write per nanosecond.  Entries can't be given a time to live.
+ *
+ * <p>The time threads spend waiting for a stripe held by another thread is measured with
+ * {@link LockWaits}, to show how much the stripes are contended.
+ */
+final class StripedKvStore implements VersionedKvStore {
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+  private final ConcurrentSkipListSet<ByteBuffer> index =
+      new ConcurrentSkipListSet<>(KeyOrder.COMPARATOR);
+  private final LockWaits lockWaits = new LockWaits();
+
+  /**
+   * Creates a store with a few stripes per available processor.
+   */
+  StripedKvStore() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a store with at least {@code minStripes} stripes.  The actual count is rounded up to a
+   * power of two.
+   */
+  StripedKvStore(int minStripes) {
+    if (minStripes < 1) {
+      throw new IllegalArgumentException("minStripes must be positive: " + minStripes);
+    }
+    int count = Integer.highestOneBit(minStripes);
+    if (count < minStripes) {
+      count <<= 1;
+    }
+    stripes = new Stripe[count];
+    stripeShift = Integer.SIZE - Integer.numberOfTrailingZeros(count);
+    long epoch = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe(epoch);
+    }
+  }
+
+  @Override
+  public ByteBuffer retrieve(ByteBuffer key) {
+    int hash = KeyTable.hash(key);
+    Stripe stripe = stripeFor(hash);
+    lock(stripe);
+    try {
+      return stripe.table.get(key, hash);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  @Override
+  public VersionedValue retrieveVersioned(ByteBuffer key) {
+    int hash = KeyTable.hash(key);
+    Stripe stripe = stripeFor(hash);
+    lock(stripe);
+    try {
+      int slot = stripe.table.find(key, hash);
+      return slot < 0
+          ? null : new VersionedValue(stripe.table.valueAt(slot), stripe.table.versionAt(slot));
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  @Override
+  public WriteResult write(ByteBuffer key, ByteBuffer value, long expected, long ttlMillis) {
+    if (ttlMillis != 0) {
+      throw Status.UNIMPLEMENTED
+          .withDescription("This store does not expire entries")
+          .asRuntimeException();
+    }
+    int hash = KeyTable.hash(key);
+    Stripe stripe = stripeFor(hash);
+    lock(stripe);
+    try {
+      KeyTable table = stripe.table;
+      int slot = table.find(key, hash);
+      if (slot < 0) {
+        if (expected != ABSENT && expected != ANY) {
+          return null;
+        }
+        long version = ++stripe.lastVersion;
+        table.insert(slot, key, hash, value, version);
+        index.add(key);
+        return new WriteResult(version, null);
+      }
+      if (expected == ABSENT) {
+        return null;
+      }
+      if (expected > 0 && table.versionAt(slot) != expected) {
+        throw VersionedKvStore.versionMismatch(expected, table.versionAt(slot));
+      }
+      ByteBuffer oldValue = table.valueAt(slot);
+      long version = ++stripe.lastVersion;
+      table.set(slot, value, version);
+      return new WriteResult(version, oldValue);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  @Override
+  public ByteBuffer delete(ByteBuffer key) {
+    int hash = KeyTable.hash(key);
+    Stripe stripe = stripeFor(hash);
+    lock(stripe);
+    try {
+      ByteBuffer oldValue = stripe.table.remove(key, hash);
+      if (oldValue != null) {
+        index.remove(key);
+      }
+      return oldValue;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteBuffer, ByteBuffer> action) {
+    List<ByteBuffer> keys = new ArrayList<>();
+    List<ByteBuffer> values = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      // Copy the entries out so the stripe isn't locked while the action runs.
+      lock(stripe);
+      try {
+        stripe.table.forEach((key, value) -> {
+          keys.add(key);
+          values.add(value);
+        });
+      } finally {
+        stripe.lock.unlock();
+      }
+      for (int i = 0; i < keys.size(); i++) {
+        action.accept(keys.get(i), values.get(i));
+      }
+      keys.clear();
+      values.clear();
+    }
+  }
+
+  @Override
+  public void scan(ByteBuffer fromKey, boolean inclusive, ByteBuffer toKey,
+      BiPredicate<ByteBuffer, ByteBuffer> action) {
+    NavigableSet<ByteBuffer> keys;
+    if (toKey == null) {
+      keys = index.tailSet(fromKey, inclusive);
+    } else if (KeyOrder.compare(fromKey, toKey) < 0) {
+      keys = index.subSet(fromKey, inclusive, toKey, false);
+    } else {
+      return;
+    }
+    for (ByteBuffer key : keys) {
+      ByteBuffer value;
+      int hash = KeyTable.hash(key);
+      Stripe stripe = stripeFor(hash);
+      lock(stripe);
+      try {
+        value = stripe.table.get(key, hash);
+      } finally {
+        stripe.lock.unlock();
+      }
+      // The key may have been removed since the index was read.
+      if (value != null && !action.test(key, value)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  long getEntryCount() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      lock(stripe);
+      try {
+        count += stripe.table.size();
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of times a thread had to wait for a stripe.
+   */
+  long getLockWaits() {
+    return lockWaits.getWaits();
+  }
+
+  /**
+   * Returns the total time threads spent waiting for stripes.
+   */
+  long getLockWaitNanos() {
+    return lockWaits.getWaitNanos();
+  }
+
+  private void lock(Stripe stripe) {
+    lockWaits.lock(stripe.lock);
+  }
+
+  private Stripe stripeFor(int hash) {
+    // The table in the stripe uses the low bits of the hash, so pick the stripe with the high ones.
+    return stripes[(int) ((hash & 0xffffffffL) >>> stripeShift)];
+  }
+
+  private static final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    // Both guarded by lock.
+    final KeyTable table = new KeyTable();
+    long lastVersion;
+
+    Stripe(long epoch) {
+      lastVersion = epoch;
+    }
+  }
+}
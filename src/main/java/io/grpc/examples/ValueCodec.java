@@ -0,0 +1,215 @@
+package io.grpc.examples;
+
+import com.google.protobuf.ByteString;
+import io.grpc.examples.proto.ValueEncoding;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes values for storing, compressing the ones large enough to be worth it.  Most values are
+ * stored as they are, with no header, so that storing them needs no copy.  A compressed value
+ * starts with a marker byte, then the length of the value as four bytes, followed by the value
+ * compressed with raw Deflate.  The marker, and the one used to escape the few values that start
+ * with a marker byte themselves, are bytes that never start valid UTF-8 text.
+ *
+ * <p>Since the encoded value is what the store holds, compressed values stay compressed in memory,
+ * in the log and in snapshots, and can be sent to clients that accept them without compressing
+ * them again.  A value is only kept compressed if that makes it smaller.
+ */
+final class ValueCodec {
+  private static final byte DEFLATE_MARKER = (byte) 0xc0;
+  private static final byte ESCAPE_MARKER = (byte) 0xc1;
+  private static final int ESCAPE_HEADER_BYTES = 1;
+  private static final int DEFLATE_HEADER_BYTES = 1 + Integer.BYTES;
+
+  /**
+   * The size of the scratch buffers values are moved through in pieces, since {@link Deflater}
+   * and {@link Inflater} only take arrays.
+   */
+  static final int CHUNK_BYTES = 16 * 1024;
+
+  /**
+   * The largest compressed output each thread keeps a buffer for.  Larger values are compressed
+   * into a buffer of their own.
+   */
+  private static final int MAX_SCRATCH_BYTES = 1024 * 1024;
+
+  // Deflaters and inflaters hold native memory until ended, so each thread reuses one, along with
+  // its scratch buffers.
+  private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  private final int minCompressBytes;
+
+  /**
+   * Creates a codec which tries to compress values of at least {@code minCompressBytes}.
+   */
+  ValueCodec(int minCompressBytes) {
+    if (minCompressBytes < 1) {
+      throw new IllegalArgumentException(
+          "minCompressBytes must be positive: " + minCompressBytes);
+    }
+    this.minCompressBytes = minCompressBytes;
+  }
+
+  /**
+   * Returns the encoded form of the value, as a read only buffer which is not shared with the
+   * value, or {@code null} if the value is stored as it is.
+   */
+  ByteBuffer encode(ByteString value) {
+    int size = value.size();
+    if (size >= minCompressBytes) {
+      ByteBuffer compressed = deflate(value);
+      if (compressed != null) {
+        return compressed;
+      }
+    }
+    if (size == 0 || !isMarker(value.byteAt(0))) {
+      return null;
+    }
+    byte[] escaped = new byte[ESCAPE_HEADER_BYTES + size];
+    escaped[0] = ESCAPE_MARKER;
+    value.copyTo(escaped, ESCAPE_HEADER_BYTES);
+    return ByteBuffer.wrap(escaped).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the encoding of an encoded value.
+   */
+  static ValueEncoding encodingOf(ByteBuffer encoded) {
+    return header(encoded) == DEFLATE_HEADER_BYTES
+        ? ValueEncoding.DEFLATE : ValueEncoding.IDENTITY;
+  }
+
+  /**
+   * Returns the bytes of an encoded value as they are sent along with its encoding: the value
+   * itself, or the Deflate stream of a compressed value.  The bytes are shared with the encoded
+   * value.
+   */
+  static ByteBuffer payload(ByteBuffer encoded) {
+    int header = header(encoded);
+    if (header == 0) {
+      return encoded;
+    }
+    ByteBuffer payload = encoded.duplicate();
+    payload.position(payload.position() + header);
+    return payload.slice();
+  }
+
+  /**
+   * Returns the value of an encoded value, decompressing it if needed.
+   */
+  static ByteBuffer decode(ByteBuffer encoded) {
+    if (encodingOf(encoded) == ValueEncoding.IDENTITY) {
+      return payload(encoded);
+    }
+    int length = encoded.getInt(encoded.position() + 1);
+    ByteBuffer payload = payload(encoded);
+    byte[] value = new byte[length];
+    Scratch s = scratch.get();
+    Inflater inflater = s.inflater;
+    inflater.reset();
+    try {
+      int n = 0;
+      // The end of the stream may come after the last byte of the value, in the next chunk, so
+      // input is fed until the inflater has seen all of it, not just until the value is complete.
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (!payload.hasRemaining()) {
+            throw new IllegalStateException("Compressed value is cut short");
+          }
+          int chunk = Math.min(payload.remaining(), CHUNK_BYTES);
+          payload.get(s.chunk, 0, chunk);
+          inflater.setInput(s.chunk, 0, chunk);
+        } else if (inflater.needsDictionary()) {
+          throw new IllegalStateException("Corrupt compressed value");
+        }
+        if (n < length) {
+          n += inflater.inflate(value, n, length - n);
+        } else if (inflater.inflate(s.overflow) > 0) {
+          throw new IllegalStateException("Compressed value is over " + length + " bytes long");
+        }
+      }
+      if (n != length) {
+        throw new IllegalStateException("Compressed value is not " + length + " bytes long");
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupt compressed value", e);
+    }
+    return ByteBuffer.wrap(value).asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the number of header bytes before the payload of an encoded value.
+   */
+  private static int header(ByteBuffer encoded) {
+    if (!encoded.hasRemaining()) {
+      return 0;
+    }
+    byte first = encoded.get(encoded.position());
+    if (first == DEFLATE_MARKER) {
+      return DEFLATE_HEADER_BYTES;
+    }
+    return first == ESCAPE_MARKER ? ESCAPE_HEADER_BYTES : 0;
+  }
+
+  private static boolean isMarker(byte b) {
+    return b == DEFLATE_MARKER || b == ESCAPE_MARKER;
+  }
+
+  /**
+   * Returns the encoded form of the value compressed, or {@code null} if that would be no smaller
+   * than storing it as it is.
+   */
+  private static ByteBuffer deflate(ByteString value) {
+    int size = value.size();
+    Scratch s = scratch.get();
+    // Anything as long as the value itself isn't worth keeping, so the output never grows past it.
+    byte[] out = size <= MAX_SCRATCH_BYTES ? s.output(size) : new byte[size];
+    Deflater deflater = s.deflater;
+    deflater.reset();
+    int length = DEFLATE_HEADER_BYTES;
+    int offset = 0;
+    while (!deflater.finished() && length < size) {
+      if (deflater.needsInput() && offset < size) {
+        int chunk = Math.min(size - offset, CHUNK_BYTES);
+        value.copyTo(s.chunk, offset, 0, chunk);
+        deflater.setInput(s.chunk, 0, chunk);
+        offset += chunk;
+        if (offset == size) {
+          deflater.finish();
+        }
+      }
+      length += deflater.deflate(out, length, size - length);
+    }
+    if (!deflater.finished() || length >= size) {
+      return null;
+    }
+    byte[] encoded = new byte[length];
+    encoded[0] = DEFLATE_MARKER;
+    ByteBuffer.wrap(encoded, 1, Integer.BYTES).putInt(size);
+    System.arraycopy(out, DEFLATE_HEADER_BYTES, encoded, DEFLATE_HEADER_BYTES,
+        length - DEFLATE_HEADER_BYTES);
+    return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+  }
+
+  /**
+   * The compression state and buffers reused by one thread.
+   */
+  private static final class Scratch {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    final Inflater inflater = new Inflater(true);
+    final byte[] chunk = new byte[CHUNK_BYTES];
+    // Catches a compressed value that holds more than its recorded length.
+    final byte[] overflow = new byte[1];
+    private byte[] output = new byte[0];
+
+    byte[] output(int size) {
+      if (output.length < size) {
+        output = new byte[size];
+      }
+      return output;
+    }
+  }
+}
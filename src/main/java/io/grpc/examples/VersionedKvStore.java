@@ -0,0 +1,104 @@
+package io.grpc.examples;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link KvStore} which gives every entry a version, so that a value can be read, changed and
+ * written back without losing a write made in between.
+ *
+ * <p>Every write gives the entry a new version.  Versions are never zero, and those of a key only
+ * grow, even when it is deleted and created again or the store is restarted, so a key never has
+ * the same version twice.  Versions of different keys are unrelated.
+ *
+ * <p>The writes of {@link KvStore} are made with {@link #write}, and so also give new versions.
+ */
+interface VersionedKvStore extends KvStore {
+
+  /**
+   * Matches only a key that is not present, in {@link #write}.
+   */
+  long ABSENT = 0;
+
+  /**
+   * Matches a present entry with any version, in {@link #write}.
+   */
+  long PRESENT = -1;
+
+  /**
+   * Matches whether or not the key is present, in {@link #write}.
+   */
+  long ANY = -2;
+
+  /**
+   * Returns the value of the key along with the version of its entry, or {@code null} if it is not
+   * present.
+   */
+  VersionedValue retrieveVersioned(ByteBuffer key);
+
+  /**
+   * Stores the value if the entry of the key matches {@code expected}, which is either the version
+   * it must have, or one of {@link #ABSENT}, {@link #PRESENT} and {@link #ANY}.  The entry expires
+   * after {@code ttlMillis}, unless it is zero, replacing any earlier time to live.  Returns the
+   * new version and the value it replaced, or {@code null} if nothing was stored because the key
+   * was present for {@code ABSENT}, or absent for anything else.
+   *
+   * @throws StatusRuntimeException with {@link Status#ABORTED} if the entry has a version other
+   *     than the expected one, or with {@link Status#UNIMPLEMENTED} if the store can't expire
+   *     entries and {@code ttlMillis} is not zero
+   */
+  WriteResult write(ByteBuffer key, ByteBuffer value, long expected, long ttlMillis);
+
+  @Override
+  default boolean create(ByteBuffer key, ByteBuffer value) {
+    return write(key, value, ABSENT, 0) != null;
+  }
+
+  @Override
+  default ByteBuffer update(ByteBuffer key, ByteBuffer value) {
+    WriteResult result = write(key, value, PRESENT, 0);
+    return result != null ? result.oldValue : null;
+  }
+
+  @Override
+  default ByteBuffer put(ByteBuffer key, ByteBuffer value) {
+    return write(key, value, ANY, 0).oldValue;
+  }
+
+  /**
+   * Returns the exception thrown by {@link #write} when the entry has the wrong version.
+   */
+  static StatusRuntimeException versionMismatch(long expected, long actual) {
+    return Status.ABORTED
+        .withDescription("Entry has version " + actual + ", not " + expected)
+        .asRuntimeException();
+  }
+
+  /**
+   * A value, and the version of the entry holding it.
+   */
+  final class VersionedValue {
+    final ByteBuffer value;
+    final long version;
+
+    VersionedValue(ByteBuffer value, long version) {
+      this.value = value;
+      this.version = version;
+    }
+  }
+
+  /**
+   * The outcome of a {@link #write}: the version of the entry written, and the value it replaced,
+   * or {@code null} if the key was not present.
+   */
+  final class WriteResult {
+    final long version;
+    final ByteBuffer oldValue;
+
+    WriteResult(long version, ByteBuffer oldValue) {
+      this.version = version;
+      this.oldValue = oldValue;
+    }
+  }
+}
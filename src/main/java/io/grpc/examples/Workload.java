@@ -0,0 +1,141 @@
+package io.grpc.examples;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Describes the load a {@link KvClient} generates: the mix of operations, how large keys and
+ * values are, how many operations go in each request, and how fast to send them.
+ */
+final class Workload {
+
+  enum SizeDistribution {
+    /**
+     * Every size is the mean.
+     */
+    FIXED,
+    /**
+     * Sizes are uniformly distributed between 1 and twice the mean.
+     */
+    UNIFORM,
+    /**
+     * Sizes are exponentially distributed with the given mean, so most are small but a few are
+     * very large.
+     */
+    EXPONENTIAL,
+    ;
+
+    int next(Random random, int mean) {
+      switch (this) {
+        case FIXED:
+          return mean;
+        case UNIFORM:
+          return 1 + random.nextInt(2 * mean);
+        case EXPONENTIAL:
+          return 1 + (int) Math.round(mean * -Math.log(1 - random.nextDouble()));
+        default:
+          throw new AssertionError();
+      }
+    }
+  }
+
+  final int createWeight;
+  final int retrieveWeight;
+  final int updateWeight;
+  final int deleteWeight;
+  final int meanKeySize;
+  final int meanValueSize;
+  final SizeDistribution sizeDistribution;
+  /**
+   * Whether values are made of only a few distinct bytes, so that they compress to about 60% of
+   * their size, rather than being entirely random.
+   */
+  final boolean compressibleValues;
+  final int batchSize;
+  final int pipelineDepth;
+  /**
+   * Operations (or batch requests) per second to start, or 0 to send each as soon as the last one
+   * completes.
+   */
+  final double targetRate;
+
+  private Workload(int[] opWeights, int meanKeySize, int meanValueSize,
+      SizeDistribution sizeDistribution, boolean compressibleValues, int batchSize,
+      int pipelineDepth, double targetRate) {
+    if (opWeights.length != 4) {
+      throw new IllegalArgumentException("Need 4 operation weights: " + opWeights.length);
+    }
+    if (opWeights[0] <= 0) {
+      throw new IllegalArgumentException("Create weight must be positive, or no keys are made");
+    }
+    for (int weight : opWeights) {
+      if (weight < 0) {
+        throw new IllegalArgumentException("Weights must not be negative: " + weight);
+      }
+    }
+    if (meanKeySize < 1 || meanValueSize < 1) {
+      throw new IllegalArgumentException("Mean sizes must be positive");
+    }
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    if (pipelineDepth < 0) {
+      throw new IllegalArgumentException("pipelineDepth must not be negative: " + pipelineDepth);
+    }
+    if (targetRate < 0) {
+      throw new IllegalArgumentException("targetRate must not be negative: " + targetRate);
+    }
+    this.createWeight = opWeights[0];
+    this.retrieveWeight = opWeights[1];
+    this.updateWeight = opWeights[2];
+    this.deleteWeight = opWeights[3];
+    this.meanKeySize = meanKeySize;
+    this.meanValueSize = meanValueSize;
+    this.sizeDistribution = sizeDistribution;
+    this.compressibleValues = compressibleValues;
+    this.batchSize = batchSize;
+    this.pipelineDepth = pipelineDepth;
+    this.targetRate = targetRate;
+  }
+
+  /**
+   * Returns the workload described by the {@code kvstore.*} system properties, using the defaults
+   * for any that are not set.  The target rate is divided evenly among the given number of
+   * clients.
+   */
+  static Workload fromSystemProperties(int clients) {
+    String[] mix = System.getProperty("kvstore.opMix", "1,1,1,1").split(",");
+    int[] weights = new int[mix.length];
+    for (int i = 0; i < mix.length; i++) {
+      weights[i] = Integer.parseInt(mix[i].trim());
+    }
+    return new Workload(
+        weights,
+        Integer.getInteger("kvstore.keySize", 64),
+        Integer.getInteger("kvstore.valueSize", 65536),
+        SizeDistribution.valueOf(
+            System.getProperty("kvstore.sizeDistribution", "exponential").toUpperCase(Locale.ROOT)),
+        Boolean.getBoolean("kvstore.compressibleValues"),
+        Integer.getInteger("kvstore.batchSize", 1),
+        Integer.getInteger("kvstore.pipelineDepth", 0),
+        Double.parseDouble(System.getProperty("kvstore.targetRate", "0")) / clients);
+  }
+
+  /**
+   * Picks a random operation according to the weights: 0 for create, 1 for retrieve, 2 for
+   * update, and 3 for delete.
+   */
+  int nextCommand(Random random) {
+    int r = random.nextInt(createWeight + retrieveWeight + updateWeight + deleteWeight);
+    if ((r -= createWeight) < 0) {
+      return 0;
+    }
+    if ((r -= retrieveWeight) < 0) {
+      return 1;
+    }
+    if (r - updateWeight < 0) {
+      return 2;
+    }
+    return 3;
+  }
+}
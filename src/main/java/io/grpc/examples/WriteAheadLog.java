@@ -0,0 +1,477 @@
+package io.grpc.examples;
+
+import io.grpc.Status;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of changes to a {@link KvStore}.  Each record is either a put of a key and
+ * value, or a delete of a key.  Records are queued by the writing threads and written by a single
+ * background thread, which writes everything queued since its last write at once and then syncs
+ * it to disk with one call.  Many writers therefore share the cost of each sync ("group commit").
+ *
+ * <p>Each record is laid out as:
+ * <pre>
+ *   int32 key length
+ *   int32 value length, or -1 for a delete
+ *   int32 CRC32 of the two lengths, key, and value
+ *   key bytes
+ *   value bytes
+ * </pre>
+ * A record that was only partly written when the process died fails its checksum, and it and
+ * anything after it in the same file are discarded on recovery.
+ *
+ * <p>The log is split into numbered generations, each its own file in the log directory.  A
+ * {@link #checkpoint} starts a new generation and then writes a {@link Snapshot} of the store with
+ * the same number.  Since each record holds the whole new state of its key, replaying a record
+ * that the snapshot already reflects is harmless, so the snapshot may be taken while writes
+ * continue.  Once the snapshot is complete, older generations and snapshots are deleted.
+ * Recovery loads the newest complete snapshot and replays the generations from it onwards.
+ */
+final class WriteAheadLog implements Closeable {
+  private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+  static final int HEADER_BYTES = 12;
+  static final int DELETE_LENGTH = -1;
+
+  private static final Pattern LOG_FILE = Pattern.compile("wal-(\\d+)\\.log");
+
+  /**
+   * How long to wait between syncs in {@link Durability#ASYNC} mode.
+   */
+  private static final long ASYNC_SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  enum Durability {
+    /**
+     * Writes are acknowledged once they are synced to disk.  Nothing acknowledged is lost.
+     */
+    SYNC,
+    /**
+     * Writes are acknowledged once they are queued, and synced to disk about once a second.  The
+     * last second or so of writes may be lost if the machine crashes.
+     */
+    ASYNC,
+  }
+
+  private final Path dir;
+  private final Durability durability;
+  private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private final Object checkpointLock = new Object();
+
+  // Only used by the writer thread, and by close() once the writer has stopped.
+  private FileChannel channel;
+
+  // Only changed while holding this, so that no record is queued after the writer has stopped.
+  private volatile boolean closed;
+  private volatile IOException failure;
+  private long generation;
+
+  private WriteAheadLog(Path dir, Durability durability, long generation) throws IOException {
+    this.dir = dir;
+    this.durability = durability;
+    this.generation = generation;
+    this.channel = openGeneration(generation);
+    this.writer = new Thread(this::writeLoop, "kvstore-wal");
+    writer.setDaemon(true);
+  }
+
+  /**
+   * Opens the log in the given directory, creating it if needed.  The newest snapshot and any
+   * records logged since are applied to the store first, so that it has the same contents as
+   * before the last shutdown.  New records go to a new generation.
+   */
+  static WriteAheadLog open(Path dir, Durability durability, KvStore store) throws IOException {
+    Files.createDirectories(dir);
+    Snapshot.deleteIncomplete(dir);
+    long snapshotGeneration = Snapshot.latestGeneration(dir);
+    if (snapshotGeneration >= 0) {
+      Snapshot.load(dir, snapshotGeneration, store);
+    }
+    long lastGeneration = snapshotGeneration - 1;
+    for (long gen : logGenerations(dir)) {
+      if (gen < snapshotGeneration) {
+        // Left over from a checkpoint that was interrupted before it cleaned up.
+        Files.delete(logFile(dir, gen));
+        continue;
+      }
+      replay(logFile(dir, gen), store);
+      lastGeneration = gen;
+    }
+    Snapshot.deleteOlderThan(dir, snapshotGeneration);
+    WriteAheadLog log = new WriteAheadLog(dir, durability, Math.max(lastGeneration + 1, 0));
+    log.writer.start();
+    return log;
+  }
+
+  /**
+   * Applies each complete record in the log file to the store.  Anything after the last complete
+   * record is truncated away.
+   */
+  private static void replay(Path file, KvStore store) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+      long pos = 0;
+      long records = 0;
+      try {
+        while (pos + HEADER_BYTES <= size) {
+          int keyLength = in.readInt();
+          int valueLength = in.readInt();
+          int checksum = in.readInt();
+          if (keyLength < 0 || valueLength < DELETE_LENGTH
+              || pos + HEADER_BYTES + keyLength + Math.max(valueLength, 0) > size) {
+            break;
+          }
+          byte[] key = new byte[keyLength];
+          in.readFully(key);
+          byte[] value = valueLength != DELETE_LENGTH ? new byte[valueLength] : null;
+          if (value != null) {
+            in.readFully(value);
+          }
+          ByteBuffer keyBuf = ByteBuffer.wrap(key).asReadOnlyBuffer();
+          ByteBuffer valueBuf = value != null ? ByteBuffer.wrap(value).asReadOnlyBuffer() : null;
+          if (checksum(keyBuf, valueBuf) != checksum) {
+            break;
+          }
+          if (valueBuf != null) {
+            store.put(keyBuf, valueBuf);
+          } else {
+            store.delete(keyBuf);
+          }
+          pos += HEADER_BYTES + keyLength + Math.max(valueLength, 0);
+          records++;
+        }
+      } catch (EOFException e) {
+        // A truncated record; everything before it is still good.
+      }
+      logger.log(Level.INFO, "Replayed {0} records from {1}", new Object[]{records, file});
+      if (pos < size) {
+        logger.log(Level.WARNING, "Discarding {0} bytes of incomplete records from {1}",
+            new Object[]{size - pos, file});
+        channel.truncate(pos);
+      }
+    }
+  }
+
+  Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * Queues a put of the key and value.  The returned future completes once the record is on disk.
+   * The buffers must not be modified afterwards.
+   */
+  CompletableFuture<Void> appendPut(ByteBuffer key, ByteBuffer value) {
+    return append(new Record(key, value, -1));
+  }
+
+  /**
+   * Queues a delete of the key.  The returned future completes once the record is on disk.
+   */
+  CompletableFuture<Void> appendDelete(ByteBuffer key) {
+    return append(new Record(key, null, -1));
+  }
+
+  /**
+   * Throws if the log can no longer accept records.  Callers should check this before changing the
+   * store, so that changes which cannot be logged are not made.
+   */
+  void checkWritable() {
+    if (closed) {
+      throw Status.UNAVAILABLE.withDescription("Log is closed").asRuntimeException();
+    }
+    IOException e = failure;
+    if (e != null) {
+      throw Status.INTERNAL.withDescription("Log write failed").withCause(e).asRuntimeException();
+    }
+  }
+
+  /**
+   * Waits for a record to reach the disk.
+   */
+  static void await(CompletableFuture<Void> future) {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withCause(e).asRuntimeException();
+    } catch (ExecutionException e) {
+      throw Status.INTERNAL.withDescription("Log write failed")
+          .withCause(e.getCause())
+          .asRuntimeException();
+    }
+  }
+
+  /**
+   * Starts a new generation of the log, writes a snapshot of the store, and then deletes the
+   * generations and snapshots it replaces.  The store must be the one whose changes are being
+   * logged.  Writes may continue while this runs.
+   */
+  void checkpoint(KvStore store) throws IOException {
+    synchronized (checkpointLock) {
+      CompletableFuture<Void> rotated;
+      long snapshotGeneration;
+      synchronized (this) {
+        checkWritable();
+        snapshotGeneration = ++generation;
+        // Every change made before this point is either in an older generation or queued ahead
+        // of the rotation, and so already visible in the store.
+        Record rotation = new Record(null, null, snapshotGeneration);
+        queue.add(rotation);
+        rotated = rotation.done;
+      }
+      await(rotated);
+      long start = System.nanoTime();
+      Snapshot.write(dir, snapshotGeneration, store);
+      for (long gen : logGenerations(dir)) {
+        if (gen < snapshotGeneration) {
+          Files.delete(logFile(dir, gen));
+        }
+      }
+      Snapshot.deleteOlderThan(dir, snapshotGeneration);
+      logger.log(Level.INFO, "Wrote snapshot {0} in {1} ms", new Object[]{
+          snapshotGeneration, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+    }
+  }
+
+  private synchronized CompletableFuture<Void> append(Record record) {
+    checkWritable();
+    queue.add(record);
+    return record.done;
+  }
+
+  /**
+   * Writes all queued records and syncs them, then stops the writer and closes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+    }
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void writeLoop() {
+    List<Record> group = new ArrayList<>();
+    long lastSyncNanos = System.nanoTime();
+    List<Record> unsynced = new ArrayList<>();
+    while (true) {
+      // Read before draining the queue, so that once closed, the drain is sure to get everything.
+      boolean stopping = closed;
+      try {
+        Record first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          group.add(first);
+        }
+      } catch (InterruptedException e) {
+        // The writer is never interrupted, since that would close the channel mid write.
+        throw new AssertionError(e);
+      }
+      queue.drainTo(group);
+      try {
+        int start = 0;
+        for (int i = 0; i <= group.size(); i++) {
+          if (i < group.size() && !group.get(i).isRotation()) {
+            continue;
+          }
+          write(group.subList(start, i));
+          unsynced.addAll(group.subList(start, i));
+          if (i < group.size()) {
+            // Everything in the old generation must be on disk before anything is in the new one.
+            sync(unsynced);
+            lastSyncNanos = System.nanoTime();
+            Record rotation = group.get(i);
+            channel.close();
+            channel = openGeneration(rotation.generation);
+            rotation.done.complete(null);
+          }
+          start = i + 1;
+        }
+        group.clear();
+        long now = System.nanoTime();
+        if (!unsynced.isEmpty() && (durability == Durability.SYNC || stopping
+            || now - lastSyncNanos >= ASYNC_SYNC_INTERVAL_NANOS)) {
+          sync(unsynced);
+          lastSyncNanos = now;
+        }
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Log write failed", e);
+        fail(group, e);
+        fail(unsynced, e);
+        synchronized (this) {
+          failure = e;
+          queue.drainTo(group);
+        }
+        fail(group, e);
+        return;
+      }
+      if (stopping) {
+        return;
+      }
+    }
+  }
+
+  private void sync(List<Record> unsynced) throws IOException {
+    channel.force(false);
+    for (Record record : unsynced) {
+      record.done.complete(null);
+    }
+    unsynced.clear();
+  }
+
+  private void write(List<Record> group) throws IOException {
+    if (group.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] buffers = new ByteBuffer[group.size() * 3];
+    int i = 0;
+    for (Record record : group) {
+      ByteBuffer key = record.key.duplicate();
+      ByteBuffer value = record.value != null ? record.value.duplicate() : null;
+      buffers[i++] = header(key, value);
+      buffers[i++] = key;
+      buffers[i++] = value != null ? value : ByteBuffer.allocate(0);
+    }
+    int offset = 0;
+    while (offset < buffers.length) {
+      channel.write(buffers, offset, buffers.length - offset);
+      while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+        offset++;
+      }
+    }
+  }
+
+  private FileChannel openGeneration(long gen) throws IOException {
+    FileChannel channel = FileChannel.open(logFile(dir, gen),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    try {
+      // Syncing the file only makes its contents durable, not the new directory entry.
+      syncDirectory(dir);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+
+  /**
+   * Syncs a directory, so that the files created in it, renamed into it or deleted from it stay
+   * that way after a crash.
+   */
+  static void syncDirectory(Path dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Returns the record header for the key and value, or for a delete of the key if the value is
+   * {@code null}.  Neither buffer's position is changed.
+   */
+  static ByteBuffer header(ByteBuffer key, ByteBuffer value) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(key.remaining())
+        .putInt(value != null ? value.remaining() : DELETE_LENGTH)
+        .putInt(checksum(key, value))
+        .flip();
+    return header;
+  }
+
+  /**
+   * Returns the record checksum for the key and value, or for a delete of the key if the value is
+   * {@code null}.  Neither buffer's position is changed.
+   */
+  static int checksum(ByteBuffer key, ByteBuffer value) {
+    CRC32 crc = new CRC32();
+    ByteBuffer lengths = ByteBuffer.allocate(8);
+    lengths.putInt(key.remaining())
+        .putInt(value != null ? value.remaining() : DELETE_LENGTH)
+        .flip();
+    crc.update(lengths);
+    crc.update(key.duplicate());
+    if (value != null) {
+      crc.update(value.duplicate());
+    }
+    return (int) crc.getValue();
+  }
+
+  private static Path logFile(Path dir, long gen) {
+    return dir.resolve(String.format("wal-%016d.log", gen));
+  }
+
+  /**
+   * Returns the generations of the log files in the directory, in ascending order.
+   */
+  private static List<Long> logGenerations(Path dir) throws IOException {
+    List<Long> gens = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Matcher m = LOG_FILE.matcher(file.getFileName().toString());
+        if (m.matches()) {
+          gens.add(Long.parseLong(m.group(1)));
+        }
+      }
+    }
+    Collections.sort(gens);
+    return gens;
+  }
+
+  private static void fail(List<Record> records, IOException e) {
+    for (Record record : records) {
+      record.done.completeExceptionally(e);
+    }
+    records.clear();
+  }
+
+  private static final class Record {
+    final ByteBuffer key;
+    final ByteBuffer value;
+    /**
+     * For a rotation marker, the generation to start.  Otherwise -1.
+     */
+    final long generation;
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Record(ByteBuffer key, ByteBuffer value, long generation) {
+      this.key = key;
+      this.value = value;
+      this.generation = generation;
+    }
+
+    boolean isRotation() {
+      return generation >= 0;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package io.grpc.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KeyTable}, mostly that removal leaves every remaining key reachable.
+ */
+public class KeyTableTest {
+
+  @Test
+  public void removeFromRunThatWrapsAround() {
+    KeyTable table = new KeyTable();
+    // All of these want the last slot of the 16 the table starts with, so the run wraps to the
+    // start of the table.
+    int hash = 15;
+    for (int i = 0; i < 5; i++) {
+      put(table, key("k" + i), hash, value("v" + i), i + 1);
+    }
+    // One key that belongs at the start, in the middle of the wrapped run.
+    put(table, key("first"), 0, value("first"), 10);
+
+    assertEquals(value("v0"), table.remove(key("k0"), hash));
+    assertEquals(value("v3"), table.remove(key("k3"), hash));
+
+    assertNull(table.get(key("k0"), hash));
+    assertNull(table.get(key("k3"), hash));
+    for (int i : new int[] {1, 2, 4}) {
+      int slot = table.find(key("k" + i), hash);
+      assertTrue("k" + i + " lost", slot >= 0);
+      assertEquals(value("v" + i), table.valueAt(slot));
+      assertEquals(i + 1, table.versionAt(slot));
+    }
+    int slot = table.find(key("first"), 0);
+    assertTrue(slot >= 0);
+    assertEquals(10, table.versionAt(slot));
+    assertEquals(4, table.size());
+  }
+
+  @Test
+  public void removeAbsentKey() {
+    KeyTable table = new KeyTable();
+    put(table, key("a"), 3, value("a"), 1);
+    assertNull(table.remove(key("b"), 3));
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void matchesHashMap() {
+    Random random = new Random(1);
+    KeyTable table = new KeyTable();
+    Map<ByteBuffer, ByteBuffer> values = new HashMap<>();
+    Map<ByteBuffer, Long> versions = new HashMap<>();
+    for (int i = 0; i < 200_000; i++) {
+      // Few enough keys that the table grows and then sees many removals, and a hash with only a
+      // few bits so that long probe runs form.
+      ByteBuffer key = key("k" + random.nextInt(2000));
+      int hash = KeyTable.hash(key) & 0x3ff;
+      int slot = table.find(key, hash);
+      assertEquals(values.containsKey(key), slot >= 0);
+      if (random.nextInt(3) == 0) {
+        assertEquals(values.remove(key), table.remove(key, hash));
+        versions.remove(key);
+      } else {
+        ByteBuffer value = value("v" + i);
+        if (slot >= 0) {
+          assertEquals(values.get(key), table.valueAt(slot));
+          assertEquals((long) versions.get(key), table.versionAt(slot));
+          table.set(slot, value, i);
+        } else {
+          table.insert(slot, key, hash, value, i);
+        }
+        values.put(key, value);
+        versions.put(key, (long) i);
+      }
+      assertEquals(values.size(), table.size());
+    }
+
+    Map<ByteBuffer, ByteBuffer> contents = new HashMap<>();
+    table.forEach(contents::put);
+    assertEquals(values, contents);
+    for (ByteBuffer key : values.keySet()) {
+      int slot = table.find(key, KeyTable.hash(key) & 0x3ff);
+      assertEquals((long) versions.get(key), table.versionAt(slot));
+    }
+  }
+
+  private static void put(KeyTable table, ByteBuffer key, int hash, ByteBuffer value,
+      long version) {
+    table.insert(table.find(key, hash), key, hash, value, version);
+  }
+
+  private static ByteBuffer key(String key) {
+    return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  }
+
+  private static ByteBuffer value(String value) {
+    return key(value);
+  }
+}
@@ -0,0 +1,146 @@
+package io.grpc.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import io.grpc.examples.proto.ValueEncoding;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Tests that {@link ValueCodec} gives back every value it stores.
+ */
+public class ValueCodecTest {
+  private static final int MIN_COMPRESS_BYTES = 128;
+
+  private final ValueCodec codec = new ValueCodec(MIN_COMPRESS_BYTES);
+
+  @Test
+  public void plainValuesAreStoredAsTheyAre() {
+    assertNull(codec.encode(ByteString.EMPTY));
+    assertNull(codec.encode(ByteString.copyFromUtf8("small")));
+    // Too short to be compressed, however well it would compress.
+    assertNull(codec.encode(compressible(MIN_COMPRESS_BYTES - 1, 1)));
+    // Long enough, but compressing doesn't make it smaller.
+    assertNull(codec.encode(incompressible(4096)));
+  }
+
+  @Test
+  public void compressesValuesFromThreshold() {
+    ByteString value = compressible(MIN_COMPRESS_BYTES, 1);
+    ByteBuffer stored = codec.encode(value);
+    assertNotNull(stored);
+    assertEquals(ValueEncoding.DEFLATE, ValueCodec.encodingOf(stored));
+    assertTrue(stored.remaining() < value.size());
+    assertEquals(value, ByteString.copyFrom(ValueCodec.decode(stored)));
+  }
+
+  @Test
+  public void escapesValuesStartingWithMarker() {
+    for (int marker : new int[] {0xc0, 0xc1}) {
+      for (ByteString value : new ByteString[] {
+          ByteString.copyFrom(new byte[] {(byte) marker}),
+          ByteString.copyFrom(new byte[] {(byte) marker, 1, 2, 3}),
+          ByteString.copyFrom(new byte[] {(byte) marker}).concat(incompressible(4096))}) {
+        ByteBuffer stored = codec.encode(value);
+        assertNotNull(stored);
+        assertEquals(value.size() + 1, stored.remaining());
+        assertEquals(ValueEncoding.IDENTITY, ValueCodec.encodingOf(stored));
+        assertEquals(value, ByteString.copyFrom(ValueCodec.payload(stored)));
+        assertEquals(value, ByteString.copyFrom(ValueCodec.decode(stored)));
+      }
+    }
+    // A compressible value starting with a marker is just compressed.
+    ByteString value = ByteString.copyFrom(new byte[] {(byte) 0xc0}).concat(compressible(4096, 1));
+    ByteBuffer stored = codec.encode(value);
+    assertEquals(ValueEncoding.DEFLATE, ValueCodec.encodingOf(stored));
+    assertEquals(value, ByteString.copyFrom(ValueCodec.decode(stored)));
+  }
+
+  @Test
+  public void decodesPayloadsAroundChunkBoundaries() {
+    ByteString pool = compressible(4 * ValueCodec.CHUNK_BYTES, 2);
+    Set<Integer> offsets = new HashSet<>();
+    for (int chunks = 1; chunks <= 2; chunks++) {
+      // The compressed length grows by less than a byte per byte of value, so stepping through
+      // value sizes gives every payload length near the boundary.
+      int boundary = chunks * ValueCodec.CHUNK_BYTES;
+      for (int size = boundary; size < 2 * boundary; size++) {
+        ByteString value = pool.substring(0, size);
+        ByteBuffer stored = codec.encode(value);
+        int offset = ValueCodec.payload(stored).remaining() - boundary;
+        if (Math.abs(offset) <= 2) {
+          offsets.add(offset);
+          assertEquals(value, ByteString.copyFrom(ValueCodec.decode(stored)));
+        }
+      }
+    }
+    assertEquals(5, offsets.size());
+  }
+
+  @Test
+  public void decodesLargeAndDirectValues() {
+    ByteString value = compressible(3 << 20, 3);
+    ByteBuffer stored = codec.encode(value);
+    ByteBuffer direct = ByteBuffer.allocateDirect(stored.remaining());
+    direct.put(stored.duplicate()).flip();
+    assertEquals(value, ByteString.copyFrom(ValueCodec.decode(stored)));
+    assertEquals(value, ByteString.copyFrom(ValueCodec.decode(direct)));
+  }
+
+  @Test
+  public void rejectsTruncatedValue() {
+    ByteBuffer stored = codec.encode(compressible(4096, 1));
+    ByteBuffer truncated = stored.duplicate();
+    truncated.limit(truncated.limit() - 1);
+    try {
+      ValueCodec.decode(truncated);
+      fail();
+    } catch (IllegalStateException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void rejectsWrongLength() {
+    ByteBuffer stored = codec.encode(compressible(4096, 1));
+    for (int length : new int[] {4095, 4097}) {
+      ByteBuffer wrong = ByteBuffer.allocate(stored.remaining());
+      wrong.put(stored.duplicate()).flip();
+      wrong.putInt(1, length);
+      try {
+        ValueCodec.decode(wrong);
+        fail();
+      } catch (IllegalStateException expected) {
+        // Expected.
+      }
+    }
+  }
+
+  /**
+   * Returns random bytes that each take one of 16 values, which Deflate shrinks well.
+   */
+  private static ByteString compressible(int size, long seed) {
+    Random random = new Random(seed);
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) ('a' + random.nextInt(16));
+    }
+    return ByteString.copyFrom(bytes);
+  }
+
+  private static ByteString incompressible(int size) {
+    byte[] bytes = new byte[size];
+    new Random(4).nextBytes(bytes);
+    // Keep clear of the markers, so that the value is stored without a header.
+    bytes[0] = 0;
+    return ByteString.copyFrom(bytes);
+  }
+}
@@ -0,0 +1,194 @@
+package io.grpc.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that {@link WriteAheadLog} recovers what it logged, and only that, after a restart.
+ */
+public class WriteAheadLogTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysAfterReopen() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    KvStore store = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, store)) {
+      put(log, store, "a", "1");
+      put(log, store, "b", "2");
+      put(log, store, "a", "3");
+      delete(log, store, "b");
+      put(log, store, "c", "4");
+    }
+
+    KvStore recovered = new StripedKvStore();
+    open(dir, recovered).close();
+    assertEquals(contents(store), contents(recovered));
+    assertEquals("3", get(recovered, "a"));
+    assertNull(get(recovered, "b"));
+  }
+
+  @Test
+  public void truncatesTornRecord() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    KvStore store = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, store)) {
+      put(log, store, "a", "1");
+      put(log, store, "b", "2");
+    }
+    Path file = newestLogFile(dir);
+    long goodSize = Files.size(file);
+    // The start of a record for "c", cut off part way through its value.
+    ByteBuffer torn = record("c", "a value that was never finished");
+    torn.limit(torn.limit() - 5);
+    append(file, torn);
+
+    KvStore recovered = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, recovered)) {
+      assertEquals(goodSize, Files.size(file));
+      assertEquals(contents(store), contents(recovered));
+      put(log, recovered, "d", "4");
+    }
+
+    // The truncated file stays readable, and so does the generation after it.
+    KvStore again = new StripedKvStore();
+    open(dir, again).close();
+    assertEquals(contents(recovered), contents(again));
+    assertNull(get(again, "c"));
+  }
+
+  @Test
+  public void discardsCorruptRecordAndWhatFollows() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    KvStore store = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, store)) {
+      put(log, store, "a", "1");
+    }
+    Path file = newestLogFile(dir);
+    long goodSize = Files.size(file);
+    ByteBuffer corrupt = record("b", "2");
+    // Flip a bit of the value, so the record fails its checksum.
+    corrupt.put(corrupt.limit() - 1, (byte) (corrupt.get(corrupt.limit() - 1) ^ 1));
+    append(file, corrupt);
+    append(file, record("c", "3"));
+
+    KvStore recovered = new StripedKvStore();
+    open(dir, recovered).close();
+    assertEquals(goodSize, Files.size(file));
+    assertEquals("1", get(recovered, "a"));
+    assertNull(get(recovered, "b"));
+    assertNull(get(recovered, "c"));
+  }
+
+  @Test
+  public void recoversFromCheckpoint() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    KvStore store = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, store)) {
+      for (int i = 0; i < 100; i++) {
+        put(log, store, "k" + i, "v" + i);
+      }
+      log.checkpoint(store);
+      // Changes after the snapshot come from the log, including deletes of snapshotted keys.
+      put(log, store, "k1", "changed");
+      delete(log, store, "k2");
+      put(log, store, "new", "value");
+    }
+    // Only the generation the snapshot starts is left.
+    assertEquals(1, logFiles(dir).size());
+    assertEquals(1, Snapshot.latestGeneration(dir));
+
+    KvStore recovered = new StripedKvStore();
+    try (WriteAheadLog log = open(dir, recovered)) {
+      assertEquals(contents(store), contents(recovered));
+      log.checkpoint(recovered);
+    }
+
+    // A second checkpoint replaces the first, and recovery still gives the same contents.
+    KvStore again = new StripedKvStore();
+    open(dir, again).close();
+    assertEquals(contents(store), contents(again));
+    assertEquals("changed", get(again, "k1"));
+    assertNull(get(again, "k2"));
+  }
+
+  private static WriteAheadLog open(Path dir, KvStore store) throws IOException {
+    return WriteAheadLog.open(dir, WriteAheadLog.Durability.SYNC, store);
+  }
+
+  private static void put(WriteAheadLog log, KvStore store, String key, String value) {
+    store.put(bytes(key), bytes(value));
+    WriteAheadLog.await(log.appendPut(bytes(key), bytes(value)));
+  }
+
+  private static void delete(WriteAheadLog log, KvStore store, String key) {
+    store.delete(bytes(key));
+    WriteAheadLog.await(log.appendDelete(bytes(key)));
+  }
+
+  private static String get(KvStore store, String key) {
+    ByteBuffer value = store.retrieve(bytes(key));
+    return value != null ? StandardCharsets.UTF_8.decode(value.duplicate()).toString() : null;
+  }
+
+  private static Map<ByteBuffer, ByteBuffer> contents(KvStore store) {
+    Map<ByteBuffer, ByteBuffer> contents = new HashMap<>();
+    store.forEach(contents::put);
+    return contents;
+  }
+
+  /**
+   * Returns a put record as the log lays it out.
+   */
+  private static ByteBuffer record(String key, String value) {
+    ByteBuffer header = WriteAheadLog.header(bytes(key), bytes(value));
+    ByteBuffer record = ByteBuffer.allocate(
+        header.remaining() + bytes(key).remaining() + bytes(value).remaining());
+    record.put(header).put(bytes(key)).put(bytes(value)).flip();
+    return record;
+  }
+
+  private static void append(Path file, ByteBuffer bytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    }
+  }
+
+  private static Path newestLogFile(Path dir) throws IOException {
+    List<Path> files = logFiles(dir);
+    return files.get(files.size() - 1);
+  }
+
+  private static List<Path> logFiles(Path dir) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+      stream.forEach(files::add);
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static ByteBuffer bytes(String s) {
+    return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+  }
+}